@@ -0,0 +1,392 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Extracts the {@code <body>} of a topic by scanning its tokens, without building a document tree, so that the
+ * memory used stays constant however large the topic is. Documents without a {@code <body>} tag are treated as if
+ * the body started at the first content that cannot be part of the head.
+ */
+public final class BodyExtractor {
+
+    /**
+     * The elements that can appear before the body starts without implying it.
+     */
+    private static final Set<String> HEAD_ELEMENTS = new HashSet<String>(Arrays.asList(
+            "html", "head", "base", "link", "meta", "script", "style", "title", "noscript"));
+
+    /**
+     * The elements that do not separate words when the text is extracted.
+     */
+    private static final Set<String> INLINE_ELEMENTS = new HashSet<String>(Arrays.asList(
+            "a", "abbr", "acronym", "b", "bdo", "big", "cite", "code", "dfn", "em", "font", "i", "kbd", "q", "s",
+            "samp", "small", "span", "strike", "strong", "sub", "sup", "tt", "u", "var"));
+
+    private BodyExtractor() {
+    }
+
+    /**
+     * Copies the {@code <body>} element, including its start and end tags, as it appears in the source.
+     *
+     * @param in  the document.
+     * @param out where to copy the body to.
+     * @throws IOException if the document could not be read or the body could not be written.
+     */
+    public static void copyBody(Reader in, Appendable out) throws IOException {
+        BodyTokens tokens = new BodyTokens(new Tokenizer(in));
+        while (tokens.next() != Tokenizer.EOF) {
+            out.append(tokens.getRaw());
+        }
+    }
+
+    /**
+     * Returns the text of the {@code <body>} element with entities decoded, scripts and styles dropped and runs of
+     * white space collapsed to a single space.
+     *
+     * @param in the document.
+     * @return the text.
+     * @throws IOException if the document could not be read.
+     */
+    public static String extractText(Reader in) throws IOException {
+        BodyTokens tokens = new BodyTokens(new Tokenizer(in));
+        StringBuilder text = new StringBuilder();
+        boolean space = true;
+        int type;
+        while ((type = tokens.next()) != Tokenizer.EOF) {
+            switch (type) {
+                case Tokenizer.TEXT:
+                    String chunk = StringEscapeUtils.unescapeHtml4(tokens.getRaw().toString());
+                    for (int i = 0; i < chunk.length(); i++) {
+                        char c = chunk.charAt(i);
+                        if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                            if (!space) {
+                                text.append(' ');
+                                space = true;
+                            }
+                        } else {
+                            text.append(c);
+                            space = false;
+                        }
+                    }
+                    break;
+                case Tokenizer.START_TAG:
+                case Tokenizer.END_TAG:
+                    if (!space && !INLINE_ELEMENTS.contains(tokens.getName())) {
+                        text.append(' ');
+                        space = true;
+                    }
+                    break;
+                default:
+                    // comments, doctypes, scripts and styles have no text
+                    break;
+            }
+        }
+        int length = text.length();
+        if (length > 0 && text.charAt(length - 1) == ' ') {
+            text.setLength(length - 1);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Filters the tokens of a document down to those of its body, supplying the body start and end tags when the
+     * document does not have them.
+     */
+    private static final class BodyTokens {
+        private final Tokenizer tokenizer;
+        private boolean inHead;
+        private String skipUntil;
+        private boolean inBody;
+        private boolean done;
+        private int pending = -1;
+        private CharSequence syntheticRaw;
+
+        private BodyTokens(Tokenizer tokenizer) {
+            this.tokenizer = tokenizer;
+        }
+
+        private CharSequence getRaw() {
+            return syntheticRaw != null ? syntheticRaw : tokenizer.getRaw();
+        }
+
+        private String getName() {
+            return syntheticRaw != null ? "body" : tokenizer.getName();
+        }
+
+        private int next() throws IOException {
+            syntheticRaw = null;
+            if (pending != -1) {
+                int type = pending;
+                pending = -1;
+                return type;
+            }
+            if (done) {
+                return Tokenizer.EOF;
+            }
+            int type = tokenizer.next();
+            if (!inBody) {
+                for (; ; type = tokenizer.next()) {
+                    if (type == Tokenizer.EOF) {
+                        done = true;
+                        return Tokenizer.EOF;
+                    }
+                    String name = tokenizer.getName();
+                    if (skipUntil != null) {
+                        if (type == Tokenizer.END_TAG && skipUntil.equals(name)) {
+                            skipUntil = null;
+                        }
+                        continue;
+                    }
+                    if (type == Tokenizer.START_TAG && "body".equals(name)) {
+                        inBody = true;
+                        return type;
+                    }
+                    if (type == Tokenizer.START_TAG && "head".equals(name)) {
+                        inHead = true;
+                    } else if (type == Tokenizer.END_TAG && "head".equals(name)) {
+                        inHead = false;
+                    } else if (type == Tokenizer.START_TAG && ("title".equals(name) || "noscript".equals(name))) {
+                        skipUntil = name;
+                    } else if (!inHead && impliesBody(type, name)) {
+                        inBody = true;
+                        pending = type;
+                        syntheticRaw = "<body>";
+                        return Tokenizer.START_TAG;
+                    }
+                }
+            }
+            if (type == Tokenizer.EOF) {
+                done = true;
+                syntheticRaw = "</body>";
+                return Tokenizer.END_TAG;
+            }
+            if (type == Tokenizer.END_TAG && "body".equals(tokenizer.getName())) {
+                done = true;
+                return type;
+            }
+            if (type == Tokenizer.END_TAG && "html".equals(tokenizer.getName())) {
+                done = true;
+                syntheticRaw = "</body>";
+                return Tokenizer.END_TAG;
+            }
+            return type;
+        }
+
+        private boolean impliesBody(int type, String name) {
+            if (type == Tokenizer.START_TAG) {
+                return !HEAD_ELEMENTS.contains(name);
+            }
+            if (type == Tokenizer.TEXT) {
+                CharSequence raw = tokenizer.getRaw();
+                for (int i = 0; i < raw.length(); i++) {
+                    if (!Character.isWhitespace(raw.charAt(i))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Splits a document into text, tags and other markup. Text is returned in chunks of bounded size so that the
+     * memory used does not depend on the size of the document.
+     */
+    private static final class Tokenizer {
+        private static final int EOF = 0;
+        private static final int TEXT = 1;
+        private static final int START_TAG = 2;
+        private static final int END_TAG = 3;
+        private static final int RAW_TEXT = 4;
+        private static final int OTHER = 5;
+
+        private static final int CHUNK = 4096;
+
+        private final Reader in;
+        private final char[] buffer = new char[8192];
+        private int pos;
+        private int limit;
+        private final StringBuilder raw = new StringBuilder();
+        private String name;
+        private String rawTextEnd;
+
+        private Tokenizer(Reader in) {
+            this.in = in;
+        }
+
+        private CharSequence getRaw() {
+            return raw;
+        }
+
+        private String getName() {
+            return name;
+        }
+
+        private int next() throws IOException {
+            raw.setLength(0);
+            name = null;
+            int c = peek(0);
+            if (c == -1) {
+                return EOF;
+            }
+            if (rawTextEnd != null) {
+                if (!lookingAtIgnoreCase(rawTextEnd)) {
+                    readText(rawTextEnd);
+                    return RAW_TEXT;
+                }
+                rawTextEnd = null;
+            }
+            if (c == '<') {
+                int c1 = peek(1);
+                if (c1 == '!' || c1 == '?') {
+                    return readOther();
+                }
+                if (c1 == '/' || Character.isLetter(c1)) {
+                    return readTag();
+                }
+            }
+            readText(null);
+            return TEXT;
+        }
+
+        private void readText(String end) throws IOException {
+            // always take the first character, it may be a stray '<'
+            raw.append((char) read());
+            for (int c = peek(0); c != -1; c = peek(0)) {
+                if (end == null ? c == '<' : c == '<' && lookingAtIgnoreCase(end)) {
+                    return;
+                }
+                if (raw.length() >= CHUNK && Character.isWhitespace(c)) {
+                    // only split on white space so that entities are never split
+                    return;
+                }
+                raw.append((char) read());
+            }
+        }
+
+        private int readOther() throws IOException {
+            if (lookingAtIgnoreCase("<!--")) {
+                for (int c = read(); c != -1; c = read()) {
+                    raw.append((char) c);
+                    if (c == '>' && raw.length() >= 7 && raw.charAt(raw.length() - 2) == '-'
+                            && raw.charAt(raw.length() - 3) == '-') {
+                        break;
+                    }
+                    if (raw.length() > CHUNK) {
+                        // keep the memory bounded, a comment is never copied without its end
+                        raw.delete(4, raw.length() - 2);
+                    }
+                }
+                return OTHER;
+            }
+            for (int c = read(); c != -1; c = read()) {
+                raw.append((char) c);
+                if (c == '>') {
+                    break;
+                }
+            }
+            return OTHER;
+        }
+
+        private int readTag() throws IOException {
+            raw.append((char) read());
+            boolean end = peek(0) == '/';
+            if (end) {
+                raw.append((char) read());
+            }
+            // the tag is copied as written, only the name used for matching is lower cased
+            StringBuilder tagName = new StringBuilder();
+            for (int c = peek(0); c != -1 && (Character.isLetterOrDigit(c) || c == '-' || c == ':' || c == '_');
+                 c = peek(0)) {
+                char ch = (char) read();
+                raw.append(ch);
+                tagName.append(Character.toLowerCase(ch));
+            }
+            char quote = 0;
+            for (int c = read(); c != -1; c = read()) {
+                raw.append((char) c);
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = (char) c;
+                } else if (c == '>') {
+                    break;
+                }
+            }
+            name = tagName.toString();
+            if (end) {
+                return END_TAG;
+            }
+            boolean selfClosing = raw.length() >= 2 && raw.charAt(raw.length() - 2) == '/';
+            if (!selfClosing && ("script".equals(name) || "style".equals(name))) {
+                rawTextEnd = "</" + name;
+            }
+            return START_TAG;
+        }
+
+        private int read() throws IOException {
+            int c = peek(0);
+            if (c != -1) {
+                pos++;
+            }
+            return c;
+        }
+
+        private int peek(int offset) throws IOException {
+            return ensure(offset + 1) ? buffer[pos + offset] : -1;
+        }
+
+        private boolean lookingAtIgnoreCase(String s) throws IOException {
+            if (!ensure(s.length())) {
+                return false;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                if (Character.toLowerCase(buffer[pos + i]) != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean ensure(int count) throws IOException {
+            if (limit - pos >= count) {
+                return true;
+            }
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+            while (limit < count) {
+                int read = in.read(buffer, limit, buffer.length - limit);
+                if (read == -1) {
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.io.IOUtils;
+
+import javax.servlet.ServletContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the fingerprint that identifies the indexed content of a bundle jar, so that a persistent search index
+ * can tell which bundles have changed since it was written.
+ */
+public final class BundleFingerprint {
+
+    /**
+     * The version of the documents written to the search index. Bump this whenever the fields change so that
+     * persistent indexes written by older versions get rebuilt.
+     */
+    public static final int INDEX_FORMAT = 2;
+
+    private BundleFingerprint() {
+    }
+
+    /**
+     * Returns the fingerprint of the bundle at the specified resource path, made from the jar name, size,
+     * modification time and SHA-1 of its content.
+     *
+     * @param application the servlet context.
+     * @param path        the resource path of the bundle jar.
+     * @param snippets    whether the documents store the body text for snippets.
+     * @return the fingerprint.
+     * @throws IOException if the jar could not be read.
+     */
+    public static String compute(ServletContext application, String path, boolean snippets) throws IOException {
+        URL resource = application.getResource(path);
+        if (resource == null) {
+            throw new IOException("Cannot find " + path);
+        }
+        URLConnection connection = resource.openConnection();
+        long lastModified = connection.getLastModified();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("JVM does not support SHA-1", e);
+        }
+        long size = 0;
+        InputStream in = connection.getInputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+                size += count;
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        StringBuilder result = new StringBuilder();
+        result.append(INDEX_FORMAT).append(snippets ? "s" : "").append(':');
+        result.append(path).append(':');
+        result.append(size).append(':');
+        result.append(lastModified).append(':');
+        for (byte b : digest.digest()) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+}
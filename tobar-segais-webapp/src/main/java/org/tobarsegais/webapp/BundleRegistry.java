@@ -0,0 +1,210 @@
+/*
+ * Copyright 2011 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Holds an open {@link JarFile} for every bundle so that requests can resolve entries without building
+ * {@code jar:} URLs and opening connections each time. The entity tags of the entries are computed when a jar is
+ * opened so that conditional requests can be answered without reading any entry.
+ */
+public class BundleRegistry {
+
+    /**
+     * The open jars keyed by the name of the jar without the {@code .jar} extension.
+     */
+    private final ConcurrentMap<String, JarFile> jars = new ConcurrentHashMap<String, JarFile>();
+
+    /**
+     * The strong entity tags of the entries of each jar, keyed by the name of the jar and then by entry name.
+     */
+    private final ConcurrentMap<String, Map<String, String>> etags =
+            new ConcurrentHashMap<String, Map<String, String>>();
+
+    /**
+     * Opens the bundle jar at the specified resource path and registers it, closing any jar previously registered
+     * under the same key.
+     *
+     * @param application the servlet context.
+     * @param fileKey     the name of the jar without the {@code .jar} extension.
+     * @param path        the resource path of the jar.
+     * @return the jar file or {@code null} if the resource is not a jar file.
+     * @throws IOException if the jar could not be opened.
+     */
+    public JarFile open(ServletContext application, String fileKey, String path) throws IOException {
+        JarFile jarFile;
+        long length;
+        long lastModified;
+        String realPath = application.getRealPath(path);
+        if (realPath != null && new File(realPath).isFile()) {
+            File file = new File(realPath);
+            length = file.length();
+            lastModified = file.lastModified();
+            jarFile = new JarFile(file);
+        } else {
+            URL resource = application.getResource(path);
+            if (resource == null) {
+                return null;
+            }
+            URLConnection resourceConnection = resource.openConnection();
+            length = resourceConnection.getContentLength();
+            lastModified = resourceConnection.getLastModified();
+            URLConnection connection = new URL("jar:" + resource + "!/").openConnection();
+            if (!(connection instanceof JarURLConnection)) {
+                return null;
+            }
+            // we want our own handle that we can close, not the one shared by the URL handler
+            connection.setUseCaches(false);
+            jarFile = ((JarURLConnection) connection).getJarFile();
+        }
+        // the entry CRC identifies the content, the jar identity guards against CRC collisions across versions
+        String identity = Integer.toHexString(fileKey.hashCode()) + Long.toHexString(length)
+                + Long.toHexString(lastModified);
+        Map<String, String> entryTags = new HashMap<String, String>();
+        for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+            JarEntry entry = entries.nextElement();
+            if (!entry.isDirectory() && entry.getCrc() != -1) {
+                entryTags.put(entry.getName(), "\"" + identity + "-" + Long.toHexString(entry.getCrc()) + "\"");
+            }
+        }
+        etags.put(fileKey, entryTags);
+        JarFile previous = jars.put(fileKey, jarFile);
+        if (previous != null && previous != jarFile) {
+            closeQuietly(previous);
+        }
+        return jarFile;
+    }
+
+    /**
+     * Returns the jar registered under the specified key or {@code null}.
+     */
+    public JarFile get(String fileKey) {
+        return jars.get(fileKey);
+    }
+
+    /**
+     * Returns the keys of all the registered jars.
+     */
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(jars.keySet());
+    }
+
+    /**
+     * Returns the entry of the jar registered under the specified key or {@code null} if either does not exist.
+     */
+    public JarEntry getEntry(String fileKey, String name) {
+        JarFile jarFile = jars.get(fileKey);
+        return jarFile == null ? null : jarFile.getJarEntry(name);
+    }
+
+    /**
+     * Returns the strong entity tag of the entry of the jar registered under the specified key or {@code null} if
+     * either does not exist.
+     */
+    public String getETag(String fileKey, String name) {
+        Map<String, String> entryTags = etags.get(fileKey);
+        return entryTags == null ? null : entryTags.get(name);
+    }
+
+    /**
+     * Removes and closes the jar registered under the specified key.
+     */
+    public void remove(String fileKey) {
+        etags.remove(fileKey);
+        JarFile jarFile = jars.remove(fileKey);
+        if (jarFile != null) {
+            closeQuietly(jarFile);
+        }
+    }
+
+    /**
+     * Returns a new registry sharing the jars of this one, except those registered under the specified keys. This
+     * lets a reload open the changed jars without touching the registry that requests are currently using.
+     *
+     * @param excluded the keys of the jars not to share.
+     * @return the new registry.
+     */
+    public BundleRegistry copy(Set<String> excluded) {
+        BundleRegistry copy = new BundleRegistry();
+        for (Map.Entry<String, JarFile> entry : jars.entrySet()) {
+            Map<String, String> entryTags = etags.get(entry.getKey());
+            if (!excluded.contains(entry.getKey()) && entryTags != null) {
+                copy.etags.put(entry.getKey(), entryTags);
+                copy.jars.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Closes the jars of this registry that are not shared with the specified registry.
+     *
+     * @param successor the registry that replaced this one.
+     * @return the entity tags of the entries of the closed jars that the successor does not have.
+     */
+    public Set<String> closeUnused(BundleRegistry successor) {
+        Set<String> unused = new HashSet<String>();
+        for (Map.Entry<String, JarFile> entry : jars.entrySet()) {
+            if (successor.get(entry.getKey()) != entry.getValue()) {
+                closeQuietly(entry.getValue());
+                Map<String, String> entryTags = etags.get(entry.getKey());
+                Map<String, String> successorTags = successor.etags.get(entry.getKey());
+                if (entryTags != null) {
+                    for (Map.Entry<String, String> tag : entryTags.entrySet()) {
+                        if (successorTags == null || !tag.getValue().equals(successorTags.get(tag.getKey()))) {
+                            unused.add(tag.getValue());
+                        }
+                    }
+                }
+            }
+        }
+        return unused;
+    }
+
+    /**
+     * Closes all the registered jars.
+     */
+    public void close() {
+        for (String fileKey : jars.keySet()) {
+            remove(fileKey);
+        }
+    }
+
+    private static void closeQuietly(JarFile jarFile) {
+        try {
+            jarFile.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Polls {@code /WEB-INF/bundles} for jars that have been added, changed or removed and reloads just those bundles.
+ * The search index only has the documents of the affected bundles replaced, while the tables of contents, keywords
+ * and resolver are rebuilt from the bundles that did not change plus the reloaded ones. The changed jars are opened
+ * in a copy of the {@link BundleRegistry} and everything is built before it is published, so requests never see a
+ * half loaded bundle. The jars that were replaced are closed once the last request using the previous snapshot has
+ * completed.
+ */
+public class BundleWatcher implements Runnable {
+
+    private final ServletContext application;
+
+    /**
+     * The bundles keyed by resource path, in the order they were discovered.
+     */
+    private final Map<String, LoadedBundle> loaded;
+
+    /**
+     * The size and modification time of each resource when it was last loaded.
+     */
+    private final Map<String, String> stamps;
+
+    /**
+     * The result of the previous poll, a change is only acted on once it has stayed the same for two polls.
+     */
+    private Map<String, String> previousScan;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates the watcher.
+     *
+     * @param application the servlet context.
+     * @param loaded      the bundles loaded at startup keyed by resource path.
+     * @param stamps      the {@link #scan} of {@code /WEB-INF/bundles} taken before the bundles were loaded.
+     */
+    public BundleWatcher(ServletContext application, Map<String, LoadedBundle> loaded, Map<String, String> stamps) {
+        this.application = application;
+        this.loaded = new LinkedHashMap<String, LoadedBundle>(loaded);
+        this.stamps = new HashMap<String, String>(stamps);
+        this.previousScan = this.stamps;
+    }
+
+    /**
+     * Starts polling on a background thread.
+     *
+     * @param interval the number of seconds between polls.
+     */
+    public synchronized void start(long interval) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tobar-segais-bundle-watcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops polling.
+     */
+    public void close() {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = this.executor;
+            this.executor = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void run() {
+        try {
+            poll();
+        } catch (RuntimeException e) {
+            // an exception would cancel all further polls
+            application.log("Could not reload bundles due to " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Checks for changes and reloads the affected bundles.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void poll() {
+        Set<String> paths = (Set<String>) application.getResourcePaths(ServletContextListenerImpl.BUNDLE_PATH);
+        if (paths == null) {
+            paths = Collections.emptySet();
+        }
+        Map<String, String> scan = scan(application, paths);
+        boolean settled = scan.equals(previousScan);
+        previousScan = scan;
+        if (!settled || scan.equals(stamps)) {
+            // either nothing changed or a jar is still being copied
+            return;
+        }
+        Set<String> changed = new HashSet<String>();
+        for (Map.Entry<String, String> entry : scan.entrySet()) {
+            if (entry.getKey().endsWith(".jar") && !entry.getValue().equals(stamps.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        Set<String> removed = new HashSet<String>();
+        for (String path : stamps.keySet()) {
+            if (path.endsWith(".jar") && !scan.containsKey(path)) {
+                removed.add(path);
+            }
+        }
+        reload(paths, changed, removed);
+        stamps.clear();
+        stamps.putAll(scan);
+    }
+
+    private void reload(Set<String> paths, Set<String> changed, Set<String> removed) {
+        HelpSnapshot snapshot = ServletContextListenerImpl.getSnapshot(application);
+        BundleRegistry registry = snapshot.getBundleRegistry();
+        Set<String> affected = new HashSet<String>();
+        for (String path : changed) {
+            affected.add(fileKey(path));
+        }
+        for (String path : removed) {
+            affected.add(fileKey(path));
+        }
+        BundleRegistry next = registry.copy(affected);
+        Map<String, LoadedBundle> reloaded = new LinkedHashMap<String, LoadedBundle>(loaded);
+        for (String path : removed) {
+            application.log("Removing " + path);
+            reloaded.remove(path);
+        }
+        // the changed bundles are indexed as they are loaded, the changes go live when the snapshot is published
+        IndexWriter indexWriter = snapshot.getDirectory() == null ? null : openIndexWriter(snapshot);
+        try {
+            for (String path : changed) {
+                LoadedBundle previous = loaded.get(path);
+                // a jar that was only touched keeps its documents in a persistent search index
+                Set<String> fingerprints = previous == null || previous.getFingerprint() == null
+                        ? Collections.<String>emptySet()
+                        : Collections.singleton(previous.getFingerprint());
+                LoadedBundle bundle = ServletContextListenerImpl.loadBundle(application, next, path, indexWriter,
+                        fingerprints);
+                if (bundle == null) {
+                    reloaded.remove(path);
+                } else {
+                    reloaded.put(path, bundle);
+                }
+            }
+            if (indexWriter != null) {
+                removeFromIndex(indexWriter, changed, removed, reloaded);
+            }
+        } finally {
+            if (indexWriter != null) {
+                try {
+                    indexWriter.close();
+                } catch (IOException e) {
+                    application.log("Could not update the search index due to " + e.getMessage(), e);
+                }
+            }
+        }
+        Map<String, String> redirects = new HashMap<String, String>();
+        Map<String, String> aliases = new HashMap<String, String>();
+        List<Pattern> sequence = ServletContextListenerImpl.readBundleSettings(application, paths, redirects, aliases);
+        try {
+            ServletContextListenerImpl.publish(application, next, reloaded.values(), redirects, aliases, sequence);
+        } catch (RuntimeException e) {
+            // close the jars that were opened for the reload, the current snapshot keeps the rest
+            Set<String> unused = next.closeUnused(registry);
+            if (snapshot.getExpandedEntryCache() != null) {
+                snapshot.getExpandedEntryCache().remove(unused);
+            }
+            throw e;
+        }
+        loaded.clear();
+        loaded.putAll(reloaded);
+        // the pages of the previous snapshot can no longer be hit, free the space they take
+        if (snapshot.getPageCache() != null) {
+            snapshot.getPageCache().clear();
+        }
+        application.log(String.format("Reloaded %d and removed %d bundle%s", changed.size(), removed.size(),
+                changed.size() + removed.size() == 1 ? "" : "s"));
+    }
+
+    private IndexWriter openIndexWriter(HelpSnapshot snapshot) {
+        IndexWriterConfig config = new IndexWriterConfig(ServletContextListenerImpl.LUCENE_VERSON,
+                snapshot.getAnalyzer());
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        try {
+            return new IndexWriter(snapshot.getDirectory(), config);
+        } catch (IOException e) {
+            application.log("Could not update the search index due to " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private void removeFromIndex(IndexWriter indexWriter, Set<String> changed, Set<String> removed,
+                                 Map<String, LoadedBundle> reloaded) {
+        try {
+            for (String path : removed) {
+                indexWriter.deleteDocuments(new Term("bundle", fileKey(path)));
+            }
+            for (String path : changed) {
+                LoadedBundle bundle = reloaded.get(path);
+                if (bundle == null || bundle.getToc() == null) {
+                    indexWriter.deleteDocuments(new Term("bundle", fileKey(path)));
+                }
+            }
+        } catch (IOException e) {
+            application.log("Could not update the search index due to " + e.getMessage(), e);
+        }
+    }
+
+    private static String fileKey(String path) {
+        return path.substring("/WEB-INF/bundles/".length(), path.lastIndexOf(".jar"));
+    }
+
+    /**
+     * Returns the size and modification time of each of the resources in {@code /WEB-INF/bundles}.
+     *
+     * @param application the servlet context.
+     * @param paths       the resource paths.
+     * @return a value that changes whenever the resource does, keyed by resource path.
+     */
+    public static Map<String, String> scan(ServletContext application, Set<String> paths) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (String path : paths) {
+            if (!path.endsWith("/")) {
+                result.put(path, stamp(application, path));
+            }
+        }
+        return result;
+    }
+
+    private static String stamp(ServletContext application, String path) {
+        String realPath = application.getRealPath(path);
+        if (realPath != null) {
+            File file = new File(realPath);
+            if (file.isFile()) {
+                return file.length() + ":" + file.lastModified();
+            }
+        }
+        try {
+            URL resource = application.getResource(path);
+            if (resource == null) {
+                return "";
+            }
+            URLConnection connection = resource.openConnection();
+            try {
+                return connection.getContentLength() + ":" + connection.getLastModified();
+            } finally {
+                IOUtils.closeQuietly(connection.getInputStream());
+            }
+        } catch (IOException e) {
+            return "";
+        }
+    }
+}
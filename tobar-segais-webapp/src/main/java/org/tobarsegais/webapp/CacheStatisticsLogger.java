@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import javax.servlet.ServletContext;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs the hit, miss and eviction counts of the caches at a fixed interval, so that the cache budgets can be tuned
+ * while the application is running rather than only from the figures logged at shutdown.
+ */
+public class CacheStatisticsLogger implements Runnable {
+
+    private final ServletContext application;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates the logger.
+     *
+     * @param application the servlet context.
+     */
+    public CacheStatisticsLogger(ServletContext application) {
+        this.application = application;
+    }
+
+    /**
+     * Starts logging on a background thread.
+     *
+     * @param interval the number of seconds between log lines.
+     */
+    public synchronized void start(long interval) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tobar-segais-cache-statistics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops logging.
+     */
+    public void close() {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = this.executor;
+            this.executor = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public void run() {
+        HelpSnapshot snapshot = ServletContextListenerImpl.getSnapshot(application);
+        log(snapshot.getContentCache());
+        log(snapshot.getCompressedContentCache());
+        log(snapshot.getPageCache());
+        log(snapshot.getSearchResultCache());
+    }
+
+    private void log(Object cache) {
+        if (cache != null) {
+            application.log(cache.toString());
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Holds the bodies of bundle entries so that hot entries are not read out of the jar for every request. The cache
+ * is bounded by the total size of the bodies and evicts the least recently used bodies first. The bodies can be kept
+ * in direct buffers outside of the heap so that a large cache does not add to garbage collection pauses.
+ */
+public class ContentCache {
+
+    private final String name;
+
+    private final long maxBytes;
+
+    private final long maxEntryBytes;
+
+    private final boolean offHeap;
+
+    private long bytes;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private final Map<String, ByteBuffer> entries = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+
+    /**
+     * Creates the cache.
+     *
+     * @param name          the name of the cache, used when reporting its statistics.
+     * @param maxBytes      the maximum total size of the bodies, {@code 0} disables the cache.
+     * @param maxEntryBytes the maximum size of a single body, so that one large entry cannot flush the cache.
+     * @param offHeap       {@code true} to keep the bodies in direct buffers.
+     */
+    public ContentCache(String name, long maxBytes, long maxEntryBytes, boolean offHeap) {
+        this.name = name;
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxEntryBytes = Math.max(0, Math.min(maxEntryBytes, maxBytes));
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Returns the maximum total size of the bodies.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns {@code true} if a body of the specified size could be cached.
+     */
+    public boolean accepts(long size) {
+        return size >= 0 && size <= maxEntryBytes;
+    }
+
+    /**
+     * Returns the body cached under the key or {@code null}. The returned buffer is a view of its own, so callers
+     * are free to change its position and limit but must not change its content.
+     */
+    public synchronized ByteBuffer get(String key) {
+        ByteBuffer body = entries.get(key);
+        if (body == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return body.duplicate();
+    }
+
+    /**
+     * Caches a body, evicting the least recently used bodies to stay within the budget. Bodies larger than the
+     * maximum entry size are not cached.
+     *
+     * @param key  the key.
+     * @param body the body.
+     * @return a view of the body.
+     */
+    public ByteBuffer put(String key, byte[] body) {
+        ByteBuffer buffer;
+        if (offHeap && body.length <= maxEntryBytes) {
+            buffer = ByteBuffer.allocateDirect(body.length);
+            buffer.put(body);
+            buffer.flip();
+        } else {
+            buffer = ByteBuffer.wrap(body);
+        }
+        if (body.length <= maxEntryBytes) {
+            synchronized (this) {
+                ByteBuffer previous = entries.put(key, buffer);
+                if (previous != null) {
+                    bytes -= previous.capacity();
+                }
+                bytes += body.length;
+                Iterator<ByteBuffer> iterator = entries.values().iterator();
+                while (bytes > maxBytes && iterator.hasNext()) {
+                    // direct buffers are released when they are garbage collected
+                    bytes -= iterator.next().capacity();
+                    iterator.remove();
+                    evictions++;
+                }
+            }
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * Removes all the cached bodies.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the total size of the cached bodies.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the fraction of lookups that found a body, or {@code 0} if there were no lookups.
+     */
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("ContentCache");
+        sb.append("{name='").append(name).append('\'');
+        sb.append(", count=").append(entries.size());
+        sb.append(", bytes=").append(bytes);
+        sb.append(", maxBytes=").append(maxBytes);
+        sb.append(", offHeap=").append(offHeap);
+        sb.append(", hits=").append(hits);
+        sb.append(", misses=").append(misses);
+        sb.append(", hitRate=").append(String.format("%.3f", getHitRate()));
+        sb.append(", evictions=").append(evictions);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer. Heap buffers are written directly, direct buffers are copied through
+     * the channel in small chunks rather than onto the heap as a whole.
+     *
+     * @param body the buffer, its position is advanced to its limit.
+     * @param out  the stream, which is not closed.
+     * @throws IOException if the stream could not be written.
+     */
+    public static void write(ByteBuffer body, OutputStream out) throws IOException {
+        if (body.hasArray()) {
+            out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+            body.position(body.limit());
+            return;
+        }
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (body.hasRemaining()) {
+            channel.write(body);
+        }
+    }
+
+    /**
+     * Reads a stream fully.
+     *
+     * @param in       the stream, which is not closed.
+     * @param sizeHint the size if known, or {@code -1}.
+     * @return the bytes.
+     * @throws IOException if the stream could not be read.
+     */
+    public static byte[] read(InputStream in, long sizeHint) throws IOException {
+        ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(sizeHint > 0 && sizeHint < Integer.MAX_VALUE ? (int) sizeHint : 8192);
+        IOUtils.copy(in, bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Compresses a stream.
+     *
+     * @param in       the stream, which is not closed.
+     * @param sizeHint the uncompressed size if known, or {@code -1}.
+     * @return the gzip compressed bytes.
+     * @throws IOException if the stream could not be read.
+     */
+    public static byte[] gzip(InputStream in, long sizeHint) throws IOException {
+        ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(sizeHint > 0 && sizeHint < Integer.MAX_VALUE ? (int) sizeHint / 4 : 8192);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        IOUtils.copy(in, out);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -17,22 +17,23 @@
 package org.tobarsegais.webapp;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.JarURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
 
 public class ContentServlet extends HttpServlet {
 
@@ -52,140 +53,373 @@ public class ContentServlet extends HttpServlet {
             path = path.substring(index + PLUGINS_ROOT.length() - 1);
         }
         ServletContext ctx = getServletContext();
-        Map<String, String> bundles = (Map<String, String>) ctx.getAttribute("bundles");
-        Map<String, String> redirects = (Map<String, String>) ctx.getAttribute("redirects");
-        Map<String, String> aliases = (Map<String, String>) ctx.getAttribute("aliases");
-        for (index = path.indexOf('/'); index != -1; index = path.indexOf('/', index + 1)) {
-            if (index == 0) {
-                // there is no bundle with an empty name
-                continue;
-            }
-            String key = path.substring(0, index);
-            if (key.startsWith("/")) {
-                key = key.substring(1);
-            }
-            if (redirects.containsKey(key)) {
+        HelpSnapshot snapshot = ServletContextListenerImpl.getSnapshot(req, ctx);
+        BundleRegistry registry = snapshot.getBundleRegistry();
+        for (PathResolver.Match match : snapshot.getPathResolver().resolve(path)) {
+            index = match.getIndex();
+            if (match.getKind() == PathResolver.Kind.REDIRECT) {
                 resp.setStatus(HttpServletResponse.SC_MOVED_PERMANENTLY);
-                final String permanentKey = StringUtils.removeEnd(StringUtils.removeStart(redirects.get(key), "/"), "/");
                 resp.setHeader("Location",
-                        req.getContextPath() + req.getServletPath() + "/" + permanentKey + path.substring(index));
+                        req.getContextPath() + req.getServletPath() + "/" + match.getTarget() + path.substring(index));
                 resp.flushBuffer();
                 return;
             }
-            if (aliases.containsKey(key)) {
+            if (match.getKind() == PathResolver.Kind.ALIAS) {
                 resp.setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
-                final String temporaryKey = StringUtils.removeEnd(StringUtils.removeStart(aliases.get(key), "/"),"/");
                 resp.setHeader("Location",
-                        req.getContextPath() + req.getServletPath() + "/" + temporaryKey + path.substring(index));
+                        req.getContextPath() + req.getServletPath() + "/" + match.getTarget() + path.substring(index));
                 resp.flushBuffer();
                 return;
             }
-            if (bundles.containsKey(key)) {
-                key = bundles.get(key);
-            }
-            URL resource = ctx.getResource(ServletContextListenerImpl.BUNDLE_PATH + "/" + key + ".jar");
-            if (resource == null) {
+            JarFile jarFile = registry.get(match.getTarget());
+            if (jarFile == null) {
                 continue;
             }
-            URL jarResource = new URL("jar:" + resource + "!/");
-            URLConnection connection = jarResource.openConnection();
-            if (!(connection instanceof JarURLConnection)) {
+            int endOfFileName = path.indexOf('#', index);
+            endOfFileName = endOfFileName == -1 ? path.length() : endOfFileName;
+            String fileName = path.substring(index + 1, endOfFileName);
+            JarEntry jarEntry = jarFile.getJarEntry(fileName);
+            if (jarEntry == null) {
                 continue;
             }
-            JarURLConnection jarConnection = (JarURLConnection) connection;
-            JarFile jarFile = jarConnection.getJarFile();
-            try {
-                int endOfFileName = path.indexOf('#', index);
-                endOfFileName = endOfFileName == -1 ? path.length() : endOfFileName;
-                String fileName = path.substring(index + 1, endOfFileName);
-                JarEntry jarEntry = jarFile.getJarEntry(fileName);
-                if (jarEntry == null) {
-                    continue;
-                }
-                long size = jarEntry.getSize();
-                if (size > 0 && size < Integer.MAX_VALUE) {
-                    resp.setContentLength((int) size);
+            String mimeType = ctx.getMimeType(fileName);
+            resp.setContentType(mimeType);
+            String cacheControl = snapshot.getCacheControl(mimeType);
+            if (cacheControl != null) {
+                resp.setHeader("Cache-Control", cacheControl);
+            }
+            String acceptEncoding = req.getHeader("Accept-Encoding");
+            boolean compressible = isCompressible(mimeType);
+            JarEntry brEntry = jarFile.getJarEntry(fileName + ".br");
+            JarEntry gzEntry = jarFile.getJarEntry(fileName + ".gz");
+            if (compressible || brEntry != null || gzEntry != null) {
+                resp.addHeader("Vary", "Accept-Encoding");
+            }
+            JarEntry bodyEntry = jarEntry;
+            String encoding = null;
+            boolean compress = false;
+            if (brEntry != null && accepts(acceptEncoding, "br")) {
+                bodyEntry = brEntry;
+                encoding = "br";
+            } else if (gzEntry != null && accepts(acceptEncoding, "gzip")) {
+                bodyEntry = gzEntry;
+                encoding = "gzip";
+            } else if (compressible && accepts(acceptEncoding, "gzip")) {
+                ContentCache cache = snapshot.getCompressedContentCache();
+                compress = cache != null && cache.accepts(jarEntry.getSize());
+                if (compress) {
+                    encoding = "gzip";
                 }
-                String mimeType = ctx.getMimeType(fileName);
-                resp.setContentType(mimeType);
-                String cacheControl = ServletContextListenerImpl.getInitParameter(ctx, "cache-control.mime." + mimeType);
-                if (cacheControl == null) {
-                    int slash = mimeType.indexOf('/');
-                    if (slash != -1) {
-                        cacheControl = ServletContextListenerImpl.getInitParameter(ctx, "cache-control.mime." + mimeType.substring(0, slash) + "/*");
+            }
+            String etag = registry.getETag(match.getTarget(), bodyEntry.getName());
+            if (etag != null && compress) {
+                // each representation needs its own strong entity tag
+                etag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+            }
+            if (etag != null) {
+                resp.setHeader("ETag", etag);
+            }
+            long lastModified = jarEntry.getTime();
+            if (lastModified > 0) {
+                resp.setDateHeader("Last-Modified", lastModified);
+            }
+            if (isNotModified(req, etag, lastModified)) {
+                resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            if (encoding != null) {
+                resp.setHeader("Content-Encoding", encoding);
+            }
+            ByteBuffer body;
+            if (compress) {
+                ContentCache cache = snapshot.getCompressedContentCache();
+                String key = match.getTarget() + "!/" + fileName + "@" + jarEntry.getCrc();
+                body = cache.get(key);
+                if (body == null) {
+                    InputStream in = jarFile.getInputStream(jarEntry);
+                    try {
+                        body = cache.put(key, ContentCache.gzip(in, jarEntry.getSize()));
+                    } finally {
+                        IOUtils.closeQuietly(in);
                     }
                 }
-                if (cacheControl == null) {
-                    cacheControl = ServletContextListenerImpl.getInitParameter(ctx, "cache-control.default");
-                }
-                if (StringUtils.isNotBlank(cacheControl)) {
-                    resp.setHeader("Cache-Control", cacheControl);
+            } else if (encoding == null) {
+                body = getCachedBody(snapshot.getContentCache(), match.getTarget(), jarFile, jarEntry);
+            } else {
+                body = null;
+            }
+            long size = body != null ? body.remaining() : bodyEntry.getSize();
+            List<long[]> ranges = null;
+            if (encoding == null && size >= 0) {
+                resp.setHeader("Accept-Ranges", "bytes");
+                if (isRangeApplicable(req, etag, lastModified)) {
+                    ranges = ByteRanges.parse(req.getHeader("Range"), size);
                 }
-                InputStream in = null;
+            }
+            if (ranges != null && ranges.isEmpty()) {
+                resp.setHeader("Content-Range", "bytes */" + size);
+                resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (ranges != null) {
+                sendRanges(resp, snapshot.getExpandedEntryCache(), jarFile, jarEntry, body, etag, mimeType, ranges);
+                return;
+            }
+            if (body != null) {
+                resp.setContentLength(body.remaining());
                 OutputStream out = resp.getOutputStream();
                 try {
-                    in = jarFile.getInputStream(jarEntry);
-                    IOUtils.copy(in, out);
+                    ContentCache.write(body, out);
                 } finally {
-                    IOUtils.closeQuietly(in);
                     out.close();
                 }
                 return;
+            }
+            if (size > 0) {
+                setContentLength(resp, size);
+            }
+            InputStream in = null;
+            OutputStream out = resp.getOutputStream();
+            try {
+                in = jarFile.getInputStream(bodyEntry);
+                IOUtils.copy(in, out);
             } finally {
-                //jarFile.close();
+                IOUtils.closeQuietly(in);
+                out.close();
             }
+            return;
         }
         resp.sendError(404);
     }
 
-    @Override
-    protected long getLastModified(HttpServletRequest req) {
-        String path = req.getPathInfo();
-        if (path == null) {
-            path = req.getServletPath();
+    /**
+     * Returns the decompressed body of an entry from the content cache, reading it into the cache if it is small
+     * enough, or {@code null} if the entry should be streamed from the jar.
+     */
+    private static ByteBuffer getCachedBody(ContentCache cache, String fileKey, JarFile jarFile, JarEntry jarEntry)
+            throws IOException {
+        if (cache == null || !cache.accepts(jarEntry.getSize())) {
+            return null;
         }
-        int index = path.indexOf(PLUGINS_ROOT);
-        if (index != -1) {
-            path = path.substring(index + PLUGINS_ROOT.length() - 1);
+        String key = fileKey + "!/" + jarEntry.getName() + "@" + jarEntry.getCrc();
+        ByteBuffer body = cache.get(key);
+        if (body == null) {
+            InputStream in = jarFile.getInputStream(jarEntry);
+            try {
+                body = cache.put(key, ContentCache.read(in, jarEntry.getSize()));
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Sends one or more ranges of an identity encoded entry. Stored entries are read by skipping within the entry,
+     * deflated entries are read from a decompressed copy so that each range does not have to inflate everything
+     * before it.
+     */
+    private void sendRanges(HttpServletResponse resp, ExpandedEntryCache expandedEntries, JarFile jarFile,
+                            JarEntry jarEntry, ByteBuffer body, String etag, String mimeType, List<long[]> ranges)
+            throws IOException {
+        long size = body != null ? body.remaining() : jarEntry.getSize();
+        File expanded = null;
+        if (body == null && jarEntry.getMethod() != ZipEntry.STORED && etag != null) {
+            if (expandedEntries != null) {
+                expanded = expandedEntries.get(jarFile, jarEntry, etag);
+            }
+        }
+        resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            resp.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+            setContentLength(resp, range[1] - range[0] + 1);
+            OutputStream out = resp.getOutputStream();
+            try {
+                copyRange(jarFile, jarEntry, body, expanded, range, out);
+            } finally {
+                out.close();
+            }
+            return;
         }
-        Map<String, String> bundles = (Map<String, String>) getServletContext().getAttribute("bundles");
+        String boundary = "TOBAR_SEGAIS_" + Long.toHexString(System.nanoTime());
+        byte[][] partHeaders = new byte[ranges.size()][];
+        long length = 0;
+        for (int i = 0; i < partHeaders.length; i++) {
+            long[] range = ranges.get(i);
+            StringBuilder partHeader = new StringBuilder();
+            partHeader.append("\r\n--").append(boundary).append("\r\n");
+            if (mimeType != null) {
+                partHeader.append("Content-Type: ").append(mimeType).append("\r\n");
+            }
+            partHeader.append("Content-Range: bytes ").append(range[0]).append('-').append(range[1]).append('/')
+                    .append(size).append("\r\n\r\n");
+            partHeaders[i] = partHeader.toString().getBytes("ISO-8859-1");
+            length += partHeaders[i].length + range[1] - range[0] + 1;
+        }
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+        length += trailer.length;
+        resp.setContentType("multipart/byteranges; boundary=" + boundary);
+        setContentLength(resp, length);
+        OutputStream out = resp.getOutputStream();
+        try {
+            for (int i = 0; i < partHeaders.length; i++) {
+                out.write(partHeaders[i]);
+                copyRange(jarFile, jarEntry, body, expanded, ranges.get(i), out);
+            }
+            out.write(trailer);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void copyRange(JarFile jarFile, JarEntry jarEntry, ByteBuffer body, File expanded, long[] range,
+                                  OutputStream out) throws IOException {
+        if (body != null) {
+            ByteBuffer slice = body.duplicate();
+            slice.position((int) range[0]);
+            slice.limit((int) range[1] + 1);
+            ContentCache.write(slice, out);
+            return;
+        }
+        InputStream in = expanded != null ? new FileInputStream(expanded) : jarFile.getInputStream(jarEntry);
         try {
-            for (index = path.indexOf('/'); index != -1; index = path.indexOf('/', index + 1)) {
-                String key = path.substring(0, index);
-                if (key.startsWith("/")) {
-                    key = key.substring(1);
+            long skip = range[0];
+            while (skip > 0) {
+                long skipped = in.skip(skip);
+                if (skipped <= 0) {
+                    if (in.read() == -1) {
+                        throw new EOFException("Entry " + jarEntry.getName() + " is shorter than its size");
+                    }
+                    skipped = 1;
                 }
-                if (bundles.containsKey(key)) {
-                    key = bundles.get(key);
+                skip -= skipped;
+            }
+            byte[] buffer = new byte[8192];
+            long remaining = range[1] - range[0] + 1;
+            while (remaining > 0) {
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1) {
+                    throw new EOFException("Entry " + jarEntry.getName() + " is shorter than its size");
                 }
-                URL resource =
-                        getServletContext().getResource(ServletContextListenerImpl.BUNDLE_PATH + "/" + key + ".jar");
-                if (resource == null) {
-                    continue;
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static void setContentLength(HttpServletResponse resp, long length) {
+        if (length < Integer.MAX_VALUE) {
+            resp.setContentLength((int) length);
+        } else {
+            resp.setHeader("Content-Length", Long.toString(length));
+        }
+    }
+
+    /**
+     * Evaluates {@code If-Range}, a range is only served if the validator still matches the entry.
+     */
+    private static boolean isRangeApplicable(HttpServletRequest req, String etag, long lastModified) {
+        String ifRange = req.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // weak tags never match for ranges
+            return etag != null && etag.equals(ifRange);
+        }
+        long date;
+        try {
+            date = req.getDateHeader("If-Range");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return lastModified > 0 && date != -1 && lastModified / 1000 == date / 1000;
+    }
+
+    /**
+     * Evaluates {@code If-None-Match} and, when there is none, {@code If-Modified-Since}. Both are handled here
+     * rather than through {@link #getLastModified(HttpServletRequest)} because the entity tag has to take precedence
+     * and many bundles are built with identical or missing entry timestamps.
+     */
+    private static boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (etag == null) {
+                return false;
+            }
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
                 }
-                URL jarResource = new URL("jar:" + resource + "!/");
-                URLConnection connection = jarResource.openConnection();
-                if (!(connection instanceof JarURLConnection)) {
-                    continue;
+                if ("*".equals(candidate) || etag.equals(candidate)) {
+                    return true;
                 }
-                JarURLConnection jarConnection = (JarURLConnection) connection;
-                JarFile jarFile = jarConnection.getJarFile();
-                try {
-                    int endOfFileName = path.indexOf('#', index);
-                    endOfFileName = endOfFileName == -1 ? path.length() : endOfFileName;
-                    String fileName = path.substring(index + 1, endOfFileName);
-                    JarEntry jarEntry = jarFile.getJarEntry(fileName);
-                    if (jarEntry == null) {
-                        continue;
+            }
+            return false;
+        }
+        if (lastModified <= 0) {
+            return false;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = req.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        // HTTP dates only have a resolution of one second
+        return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * Returns {@code true} if content of the mime type is worth compressing.
+     */
+    private static boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        return mimeType.startsWith("text/")
+                || mimeType.endsWith("+xml")
+                || mimeType.endsWith("+json")
+                || mimeType.equals("application/javascript")
+                || mimeType.equals("application/x-javascript")
+                || mimeType.equals("application/json")
+                || mimeType.equals("application/xml");
+    }
+
+    /**
+     * Returns {@code true} if the {@code Accept-Encoding} header accepts the content coding.
+     */
+    static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double wildcard = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String name = params[0].trim();
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
                     }
-                    return jarEntry.getTime();
-                } finally {
-                    //jarFile.close();
                 }
             }
-        } catch (IOException e) {
-            // ignore
+            if (name.equalsIgnoreCase(coding) || ("gzip".equals(coding) && name.equalsIgnoreCase("x-gzip"))) {
+                return q > 0;
+            }
+            if ("*".equals(name)) {
+                wildcard = q;
+            }
         }
-        return -1;
+        return wildcard > 0;
     }
 }
@@ -16,19 +16,17 @@
 
 package org.tobarsegais.webapp;
 
-import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang3.StringUtils;
-import org.tobarsegais.webapp.data.Toc;
-import org.tobarsegais.webapp.data.TocEntry;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * The main application servlet.
@@ -42,6 +40,8 @@ public class DocsServlet extends HttpServlet {
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        // pinned to the request so that the template renders from the same snapshot
+        HelpSnapshot snapshot = ServletContextListenerImpl.getSnapshot(req, getServletContext());
         boolean raw = req.getParameter("raw") != null;
         String topicKey = req.getParameter("topic");
         boolean isTopic = topicKey != null && topicKey.length() > 0;
@@ -56,10 +56,10 @@ public class DocsServlet extends HttpServlet {
         }
 
         if( isTopic ){
-        	path = findTopicPath(topicKey);
+        	path = findTopicPath(snapshot, topicKey);
         }
 
-        String defaultPath = ServletContextListenerImpl.getInitParameter(getServletContext(), "default.page.path");
+        String defaultPath = snapshot.getInitParameter("default.page.path");
         if (StringUtils.isNotBlank(defaultPath)) {
             if (path.equals("/docs")) {
                 resp.sendRedirect(defaultPath.startsWith("/") ? "docs" + defaultPath : "docs/" + defaultPath);
@@ -77,28 +77,21 @@ public class DocsServlet extends HttpServlet {
         }
 
         if (!isTopic) {
-            Map<String, String> redirects = (Map<String, String>) getServletContext().getAttribute("redirects");
-            Map<String, String> aliases = (Map<String, String>) getServletContext().getAttribute("aliases");
-            for (index = path.indexOf('/'); index != -1; index = path.indexOf('/', index + 1)) {
-                String key = path.substring(0, index);
-                if (key.startsWith("/")) {
-                    key = key.substring(1);
-                }
-                if (redirects.containsKey(key)) {
+            for (PathResolver.Match match : snapshot.getPathResolver().resolve(path)) {
+                index = match.getIndex();
+                if (match.getKind() == PathResolver.Kind.REDIRECT) {
                     resp.setStatus(HttpServletResponse.SC_MOVED_PERMANENTLY);
-                    final String permanentKey =
-                            StringUtils.removeEnd(StringUtils.removeStart(redirects.get(key), "/"), "/");
                     resp.setHeader("Location",
-                            req.getContextPath() + req.getServletPath() + "/" + permanentKey + path.substring(index));
+                            req.getContextPath() + req.getServletPath() + "/" + match.getTarget()
+                                    + path.substring(index));
                     resp.flushBuffer();
                     return;
                 }
-                if (aliases.containsKey(key)) {
+                if (match.getKind() == PathResolver.Kind.ALIAS) {
                     resp.setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
-                    final String temporaryKey =
-                            StringUtils.removeEnd(StringUtils.removeStart(aliases.get(key), "/"), "/");
                     resp.setHeader("Location",
-                            req.getContextPath() + req.getServletPath() + "/" + temporaryKey + path.substring(index));
+                            req.getContextPath() + req.getServletPath() + "/" + match.getTarget()
+                                    + path.substring(index));
                     resp.flushBuffer();
                     return;
                 }
@@ -120,27 +113,89 @@ public class DocsServlet extends HttpServlet {
         	} else {
         		req.setAttribute("content", req.getPathInfo());
         	}
-            req.getRequestDispatcher("/WEB-INF/docs-template.jsp").forward(req, resp);
+            renderPage(req, resp, snapshot, (String) req.getAttribute("content"));
         }
     }
     
+    /**
+     * Renders the page of a topic through {@code docs-template.jsp}. Apart from the active tab the page only depends
+     * on the path, the bundles and the context-params, so pages that do not show search results are kept in the
+     * page cache, optionally gzip compressed, keyed by the snapshot they were rendered from.
+     */
+    private void renderPage(HttpServletRequest req, HttpServletResponse resp, HelpSnapshot snapshot, String content)
+            throws ServletException, IOException {
+        ContentCache pageCache = snapshot.getPageCache();
+        String query = req.getParameter("query");
+        if (pageCache == null || pageCache.getMaxBytes() == 0 || (query != null && query.length() > 0)) {
+            req.getRequestDispatcher("/WEB-INF/docs-template.jsp").forward(req, resp);
+            return;
+        }
+        String tab = req.getParameter("keywords") != null ? "index" : "contents";
+        String key = snapshot.getGeneration() + "|" + req.getContextPath() + "|" + tab + "|" + content;
+        boolean gzip = Boolean.parseBoolean(snapshot.getInitParameter("page-cache.gzip"));
+        if (gzip) {
+            resp.addHeader("Vary", "Accept-Encoding");
+        }
+        boolean acceptsGzip = gzip && ContentServlet.accepts(req.getHeader("Accept-Encoding"), "gzip");
+        ByteBuffer body = pageCache.get(acceptsGzip ? key + "|gzip" : key);
+        if (body == null) {
+            CapturingResponseWrapper capture = new CapturingResponseWrapper(resp);
+            req.getRequestDispatcher("/WEB-INF/docs-template.jsp").forward(req, capture);
+            byte[] page = capture.toByteArray();
+            if (capture.getStatus() != HttpServletResponse.SC_OK
+                    || snapshot != ServletContextListenerImpl.getSnapshot(getServletContext())) {
+                // do not cache errors, nor pages of bundles that were reloaded while rendering
+                body = ByteBuffer.wrap(page);
+                acceptsGzip = false;
+            } else {
+                body = pageCache.put(key, page);
+                if (gzip) {
+                    ByteBuffer gzipped = pageCache.put(key + "|gzip",
+                            ContentCache.gzip(new ByteArrayInputStream(page), page.length));
+                    if (acceptsGzip) {
+                        body = gzipped;
+                    }
+                }
+            }
+        } else {
+            resp.setContentType("text/html;charset=UTF-8");
+            String cacheControl = snapshot.getCacheControl("text/html");
+            if (cacheControl != null) {
+                resp.setHeader("Cache-Control", cacheControl);
+            }
+        }
+        if (acceptsGzip) {
+            resp.setHeader("Content-Encoding", "gzip");
+        }
+        resp.setContentLength(body.remaining());
+        OutputStream out = resp.getOutputStream();
+        try {
+            ContentCache.write(body, out);
+        } finally {
+            out.close();
+        }
+    }
+
     /**
      * search full path for given topic href
      * 
      * if topic key place more than one bundle, returns first found
      * 
+     * @param snapshot
      * @param topicKey
      * @return
      */
-    protected String findTopicPath( String topicKey ){
-    	ServletContext application = getServletContext();
-    	Map<String, Toc> contents = ServletContextListenerImpl.getTablesOfContents(application);
-    	for( Entry<String, Toc> entry :  contents.entrySet() ){
-    		TocEntry tocEntry = entry.getValue().lookupTopic(topicKey);
-    		if( tocEntry != null ){
-    			return "/" + entry.getKey() + "/" + tocEntry.getHref();
-    		}
+    protected String findTopicPath( HelpSnapshot snapshot, String topicKey ){
+    	TopicIndex.Match match = snapshot.getTopicIndex().find(topicKey);
+    	if (match == null) {
+    	    return "/docs";
+    	}
+    	String path = match.getPath();
+    	int hashIndex = topicKey.indexOf('#');
+    	if (hashIndex != -1) {
+    	    // the index ignores fragments, so put back the section that was asked for
+    	    path = StringUtils.substringBefore(path, "#") + topicKey.substring(hashIndex);
     	}
-    	return "/docs";
+    	return path;
     }
 }
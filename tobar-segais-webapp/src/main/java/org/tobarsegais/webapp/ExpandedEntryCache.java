@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Keeps decompressed copies of deflated bundle entries on disk so that range requests can seek in them instead of
+ * inflating the entry from the start for every range. Copies are keyed by entity tag, so a changed entry gets a new
+ * copy. The copies of a jar are deleted once a reload has replaced it and no request is using it any more, the rest
+ * when the cache is closed.
+ */
+public class ExpandedEntryCache {
+
+    private final File directory;
+
+    private final ConcurrentMap<String, File> files = new ConcurrentHashMap<String, File>();
+
+    /**
+     * Creates the cache.
+     *
+     * @param directory the directory to keep the copies in.
+     */
+    public ExpandedEntryCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the decompressed copy of an entry, creating it if necessary.
+     *
+     * @param jarFile the jar.
+     * @param entry   the entry.
+     * @param etag    the entity tag of the entry.
+     * @return the copy.
+     * @throws IOException if the copy could not be created.
+     */
+    public File get(JarFile jarFile, JarEntry entry, String etag) throws IOException {
+        File file = files.get(etag);
+        if (file != null && file.isFile()) {
+            return file;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File temp = File.createTempFile("expanding", ".tmp", directory);
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = jarFile.getInputStream(entry);
+            out = new FileOutputStream(temp);
+            IOUtils.copy(in, out);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            IOUtils.closeQuietly(out);
+            FileUtils.deleteQuietly(temp);
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        File existing = files.putIfAbsent(etag, temp);
+        if (existing != null && existing.isFile()) {
+            // another request expanded it first
+            FileUtils.deleteQuietly(temp);
+            return existing;
+        }
+        files.put(etag, temp);
+        return temp;
+    }
+
+    /**
+     * Deletes the copies of the specified entries.
+     *
+     * @param etags the entity tags of the entries.
+     */
+    public void remove(Collection<String> etags) {
+        for (String etag : etags) {
+            File file = files.remove(etag);
+            if (file != null) {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    /**
+     * Deletes all the copies.
+     */
+    public void close() {
+        files.clear();
+        FileUtils.deleteQuietly(directory);
+    }
+}
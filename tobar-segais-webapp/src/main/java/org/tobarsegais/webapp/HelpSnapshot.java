@@ -0,0 +1,432 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.tobarsegais.webapp.data.Index;
+import org.tobarsegais.webapp.data.Toc;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Everything a request needs to know about the loaded bundles, the search index and the configuration. A reload
+ * publishes a new snapshot rather than changing the current one. Each snapshot holds its own searcher, so it keeps
+ * seeing the version of the search index it was published with. The index {@link Directory} and the
+ * {@link SearcherManager} are shared by all snapshots, but they only change while the next snapshot is being built.
+ * The caches are shared too and key what they hold so that one snapshot never sees another's entries. Request code
+ * should pin the snapshot once and use it throughout, so that it sees a consistent view even if a reload happens
+ * meanwhile.
+ *
+ * @see ServletContextListenerImpl#getSnapshot(javax.servlet.ServletRequest, javax.servlet.ServletContext)
+ */
+public final class HelpSnapshot {
+
+    private static final AtomicLong GENERATIONS = new AtomicLong();
+
+    private final Map<String, String> params;
+
+    private final BundleRegistry registry;
+
+    private final Map<String, Toc> contents;
+
+    private final List<Pattern> sequence;
+
+    private final TocRenderer tocRenderer;
+
+    private final TopicIndex topics;
+
+    private final Index keywords;
+
+    private final KeywordsRenderer keywordsRenderer;
+
+    private final SuggestionIndex suggestions;
+
+    private final Map<String, String> bundles;
+
+    private final Map<String, String> redirects;
+
+    private final Map<String, String> aliases;
+
+    private final PathResolver resolver;
+
+    private final Directory directory;
+
+    private final SearcherManager searcherManager;
+
+    private final IndexSearcher searcher;
+
+    private final Analyzer analyzer;
+
+    private final QueryParserPool contentsQueryParser;
+
+    private final ContentCache contentCache;
+
+    private final ContentCache compressedContentCache;
+
+    private final ContentCache pageCache;
+
+    private final TopicBodyCache topicBodyCache;
+
+    private final ExpandedEntryCache expandedEntryCache;
+
+    private final SearchResultCache searchResultCache;
+
+    private final long generation = GENERATIONS.incrementAndGet();
+
+    /**
+     * The number of requests using this snapshot, plus one while it is the current snapshot.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Creates a snapshot that only holds the configuration.
+     *
+     * @param params the values of the context-params.
+     */
+    public HelpSnapshot(Map<String, String> params) {
+        this(Collections.unmodifiableMap(params), null, Collections.<String, Toc>emptyMap(), null, null, null, null,
+                null, null, Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap(),
+                Collections.<String, String>emptyMap(), null, null, null, null, null, null, null, null, null, null,
+                null, null);
+    }
+
+    private HelpSnapshot(Map<String, String> params, BundleRegistry registry, Map<String, Toc> contents,
+                         List<Pattern> sequence, TocRenderer tocRenderer, TopicIndex topics, Index keywords,
+                         KeywordsRenderer keywordsRenderer, SuggestionIndex suggestions,
+                         Map<String, String> bundles, Map<String, String> redirects, Map<String, String> aliases,
+                         PathResolver resolver, Directory directory, SearcherManager searcherManager,
+                         IndexSearcher searcher, Analyzer analyzer, QueryParserPool contentsQueryParser,
+                         ContentCache contentCache,
+                         ContentCache compressedContentCache, ContentCache pageCache, TopicBodyCache topicBodyCache,
+                         ExpandedEntryCache expandedEntryCache, SearchResultCache searchResultCache) {
+        this.params = params;
+        this.registry = registry;
+        this.contents = contents;
+        this.sequence = sequence;
+        this.tocRenderer = tocRenderer;
+        this.topics = topics;
+        this.keywords = keywords;
+        this.keywordsRenderer = keywordsRenderer;
+        this.suggestions = suggestions;
+        this.bundles = bundles;
+        this.redirects = redirects;
+        this.aliases = aliases;
+        this.resolver = resolver;
+        this.directory = directory;
+        this.searcherManager = searcherManager;
+        this.searcher = searcher;
+        this.analyzer = analyzer;
+        this.contentsQueryParser = contentsQueryParser;
+        this.contentCache = contentCache;
+        this.compressedContentCache = compressedContentCache;
+        this.pageCache = pageCache;
+        this.topicBodyCache = topicBodyCache;
+        this.expandedEntryCache = expandedEntryCache;
+        this.searchResultCache = searchResultCache;
+    }
+
+    /**
+     * Returns a copy of this snapshot with the bundles replaced.
+     *
+     * @param registry         the registry holding the jars of the bundles.
+     * @param contents         the tables of contents keyed by bundle.
+     * @param sequence         the patterns from {@code sequence.lst} or {@code null}.
+     * @param tocRenderer      the renderer of the tables of contents.
+     * @param topics           the topics of the tables of contents.
+     * @param keywords         the keywords of all the bundles.
+     * @param keywordsRenderer the renderer of the keywords.
+     * @param suggestions      the suggestions for the search box.
+     * @param bundles          the jar names keyed by bundle symbolic name.
+     * @param redirects        the permanent redirects.
+     * @param aliases          the temporary redirects.
+     * @param resolver         the resolver of request paths.
+     * @return the new snapshot.
+     */
+    public HelpSnapshot withBundles(BundleRegistry registry, Map<String, Toc> contents, List<Pattern> sequence,
+                                    TocRenderer tocRenderer, TopicIndex topics, Index keywords,
+                                    KeywordsRenderer keywordsRenderer, SuggestionIndex suggestions,
+                                    Map<String, String> bundles, Map<String, String> redirects,
+                                    Map<String, String> aliases, PathResolver resolver) {
+        return new HelpSnapshot(params, registry, Collections.unmodifiableMap(contents),
+                sequence == null ? null : Collections.unmodifiableList(sequence), tocRenderer, topics, keywords,
+                keywordsRenderer, suggestions, Collections.unmodifiableMap(bundles),
+                Collections.unmodifiableMap(redirects), Collections.unmodifiableMap(aliases), resolver, directory,
+                searcherManager, searcher, analyzer, contentsQueryParser, contentCache, compressedContentCache,
+                pageCache, topicBodyCache, expandedEntryCache, searchResultCache);
+    }
+
+    /**
+     * Returns a copy of this snapshot with the search index replaced.
+     *
+     * @param directory           the directory holding the search index or {@code null} if search is unavailable.
+     * @param searcherManager     the searcher manager or {@code null} if search is unavailable.
+     * @param analyzer            the analyzer the search index was written with.
+     * @param contentsQueryParser the parser of search queries.
+     * @return the new snapshot.
+     */
+    public HelpSnapshot withSearch(Directory directory, SearcherManager searcherManager, Analyzer analyzer,
+                                   QueryParserPool contentsQueryParser) {
+        return new HelpSnapshot(params, registry, contents, sequence, tocRenderer, topics, keywords, keywordsRenderer,
+                suggestions, bundles, redirects, aliases, resolver, directory, searcherManager, searcher, analyzer,
+                contentsQueryParser, contentCache, compressedContentCache, pageCache, topicBodyCache,
+                expandedEntryCache, searchResultCache);
+    }
+
+    /**
+     * Returns a copy of this snapshot that searches with the specified searcher. The searcher belongs to the new
+     * snapshot and is released back to the searcher manager once the snapshot has been replaced and no request is
+     * using it any more.
+     *
+     * @param searcher a searcher acquired from {@link #getSearcherManager()} or {@code null}.
+     * @return the new snapshot.
+     */
+    public HelpSnapshot withSearcher(IndexSearcher searcher) {
+        return new HelpSnapshot(params, registry, contents, sequence, tocRenderer, topics, keywords, keywordsRenderer,
+                suggestions, bundles, redirects, aliases, resolver, directory, searcherManager, searcher, analyzer,
+                contentsQueryParser, contentCache, compressedContentCache, pageCache, topicBodyCache,
+                expandedEntryCache, searchResultCache);
+    }
+
+    /**
+     * Returns a copy of this snapshot with the caches replaced. The caches themselves are shared by every snapshot
+     * that follows.
+     *
+     * @param contentCache           the cache of entry bodies.
+     * @param compressedContentCache the cache of compressed entry bodies.
+     * @param pageCache              the cache of rendered docs pages.
+     * @param topicBodyCache         the cache of topic bodies.
+     * @param expandedEntryCache     the decompressed copies of entries used to serve ranges.
+     * @param searchResultCache      the cache of pages of search results.
+     * @return the new snapshot.
+     */
+    public HelpSnapshot withCaches(ContentCache contentCache, ContentCache compressedContentCache,
+                                   ContentCache pageCache, TopicBodyCache topicBodyCache,
+                                   ExpandedEntryCache expandedEntryCache, SearchResultCache searchResultCache) {
+        return new HelpSnapshot(params, registry, contents, sequence, tocRenderer, topics, keywords, keywordsRenderer,
+                suggestions, bundles, redirects, aliases, resolver, directory, searcherManager, searcher, analyzer,
+                contentsQueryParser, contentCache, compressedContentCache, pageCache, topicBodyCache,
+                expandedEntryCache, searchResultCache);
+    }
+
+    /**
+     * Returns the value of a context-param or {@code null}.
+     */
+    public String getInitParameter(String name) {
+        return params.get(name);
+    }
+
+    /**
+     * Returns the values of all the context-params.
+     */
+    public Map<String, String> getInitParameters() {
+        return params;
+    }
+
+    /**
+     * Returns the {@code Cache-Control} header to use for a mime type, see the comments in {@code web.xml}.
+     *
+     * @param mimeType the mime type, may be {@code null}.
+     * @return the header value or {@code null} if no header should be sent.
+     */
+    public String getCacheControl(String mimeType) {
+        String cacheControl = null;
+        if (mimeType != null) {
+            cacheControl = params.get("cache-control.mime." + mimeType);
+            if (cacheControl == null) {
+                int slash = mimeType.indexOf('/');
+                if (slash != -1) {
+                    cacheControl = params.get("cache-control.mime." + mimeType.substring(0, slash) + "/*");
+                }
+            }
+        }
+        if (cacheControl == null) {
+            cacheControl = params.get("cache-control.default");
+        }
+        return StringUtils.isBlank(cacheControl) ? null : cacheControl;
+    }
+
+    public BundleRegistry getBundleRegistry() {
+        return registry;
+    }
+
+    /**
+     * Returns the tables of contents keyed by bundle.
+     */
+    public Map<String, Toc> getTablesOfContents() {
+        return contents;
+    }
+
+    /**
+     * Returns the patterns from {@code sequence.lst} or {@code null} if there is no {@code sequence.lst}.
+     */
+    public List<Pattern> getSequence() {
+        return sequence;
+    }
+
+    public TocRenderer getTocRenderer() {
+        return tocRenderer;
+    }
+
+    public TopicIndex getTopicIndex() {
+        return topics;
+    }
+
+    public Index getKeywordsIndex() {
+        return keywords;
+    }
+
+    public KeywordsRenderer getKeywordsRenderer() {
+        return keywordsRenderer;
+    }
+
+    public SuggestionIndex getSuggestionIndex() {
+        return suggestions;
+    }
+
+    /**
+     * Returns the jar names keyed by bundle symbolic name.
+     */
+    public Map<String, String> getBundles() {
+        return bundles;
+    }
+
+    /**
+     * Returns the permanent redirects.
+     */
+    public Map<String, String> getRedirects() {
+        return redirects;
+    }
+
+    /**
+     * Returns the temporary redirects.
+     */
+    public Map<String, String> getAliases() {
+        return aliases;
+    }
+
+    public PathResolver getPathResolver() {
+        return resolver;
+    }
+
+    /**
+     * Returns the directory holding the search index or {@code null} if search is unavailable.
+     */
+    public Directory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the searcher manager or {@code null} if search is unavailable. It is shared by every snapshot and
+     * only used to acquire the searcher of the next snapshot, requests search with {@link #getSearcher()}.
+     */
+    public SearcherManager getSearcherManager() {
+        return searcherManager;
+    }
+
+    /**
+     * Returns the searcher of this snapshot or {@code null} if search is unavailable. It keeps seeing the version
+     * of the index that was current when the snapshot was published, and stays open for as long as a request is
+     * using the snapshot.
+     */
+    public IndexSearcher getSearcher() {
+        return searcher;
+    }
+
+    public Analyzer getAnalyzer() {
+        return analyzer;
+    }
+
+    /**
+     * Returns the parser of search queries, which is safe to use from any thread.
+     */
+    public QueryParserPool getContentsQueryParser() {
+        return contentsQueryParser;
+    }
+
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    public ContentCache getCompressedContentCache() {
+        return compressedContentCache;
+    }
+
+    public ContentCache getPageCache() {
+        return pageCache;
+    }
+
+    public TopicBodyCache getTopicBodyCache() {
+        return topicBodyCache;
+    }
+
+    /**
+     * Returns a number that is different for every snapshot, for keying anything derived from the snapshot.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Registers another user of this snapshot.
+     *
+     * @return {@code false} if the snapshot has already been released and must not be used.
+     */
+    boolean pin() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unregisters a user of this snapshot.
+     *
+     * @return {@code true} if that was the last user.
+     */
+    boolean unpin() {
+        return references.decrementAndGet() == 0;
+    }
+
+    /**
+     * Returns {@code true} once the snapshot has been replaced and no request is using it any more.
+     */
+    boolean isReleased() {
+        return references.get() <= 0;
+    }
+
+    public ExpandedEntryCache getExpandedEntryCache() {
+        return expandedEntryCache;
+    }
+
+    public SearchResultCache getSearchResultCache() {
+        return searchResultCache;
+    }
+}
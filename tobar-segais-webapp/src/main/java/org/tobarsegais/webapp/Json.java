@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+/**
+ * Just enough JSON to write the responses of the JSON endpoints.
+ */
+public final class Json {
+
+    /**
+     * The content type of JSON responses.
+     */
+    public static final String CONTENT_TYPE = "application/json;charset=UTF-8";
+
+    private Json() {
+    }
+
+    /**
+     * Appends the value as a JSON string literal, or {@code null} if the value is {@code null}.
+     *
+     * @param out   the buffer to append to.
+     * @param value the value.
+     * @return the buffer.
+     */
+    public static StringBuilder appendString(StringBuilder out, String value) {
+        if (value == null) {
+            return out.append("null");
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '<':
+                    // keeps the output safe to embed in a page
+                    out.append("\\u003c");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"');
+    }
+
+    /**
+     * Appends a property name and its string value.
+     *
+     * @param out   the buffer to append to.
+     * @param name  the property name.
+     * @param value the property value.
+     * @return the buffer.
+     */
+    public static StringBuilder appendProperty(StringBuilder out, String name, String value) {
+        appendString(out, name).append(':');
+        return appendString(out, value);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.tobarsegais.webapp.data.Index;
+import org.tobarsegais.webapp.data.IndexEntry;
+import org.tobarsegais.webapp.data.IndexSee;
+import org.tobarsegais.webapp.data.IndexTopic;
+
+import java.io.UnsupportedEncodingException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Renders the keyword index. The index is split into buckets by the leading character of the top level keywords so
+ * that the browser can fetch one bucket at a time. The topic links of every keyword are resolved when the renderer
+ * is created and the markup of each bucket is rendered once per context path.
+ */
+public class KeywordsRenderer {
+
+    private final Index keywords;
+
+    /**
+     * The labels of the buckets, the position in the list is the bucket id.
+     */
+    private final List<String> labels;
+
+    /**
+     * The top level entries of each bucket.
+     */
+    private final List<List<IndexEntry>> buckets;
+
+    /**
+     * The bucket that each entry (at any level) is rendered in.
+     */
+    private final Map<IndexEntry, Integer> bucketOf;
+
+    /**
+     * The topic links of each entry, as pairs of the href relative to {@code /docs/} and the title.
+     */
+    private final Map<IndexEntry, List<String[]>> topics;
+
+    private final ConcurrentMap<String, byte[][]> rendered = new ConcurrentHashMap<String, byte[][]>();
+
+    /**
+     * Creates the renderer.
+     *
+     * @param keywords   the merged keyword index.
+     * @param topicIndex the topics of the tables of contents, used to find the titles of topics that have none.
+     */
+    public KeywordsRenderer(Index keywords, TopicIndex topicIndex) {
+        this.keywords = keywords;
+        Map<String, List<IndexEntry>> buckets = new LinkedHashMap<String, List<IndexEntry>>();
+        for (IndexEntry entry : keywords.getEntries().values()) {
+            String label = bucketLabel(entry.getKeyword());
+            List<IndexEntry> bucket = buckets.get(label);
+            if (bucket == null) {
+                bucket = new ArrayList<IndexEntry>();
+                buckets.put(label, bucket);
+            }
+            bucket.add(entry);
+        }
+        this.labels = Collections.unmodifiableList(new ArrayList<String>(buckets.keySet()));
+        this.buckets = new ArrayList<List<IndexEntry>>(buckets.values());
+        this.bucketOf = new IdentityHashMap<IndexEntry, Integer>();
+        this.topics = new IdentityHashMap<IndexEntry, List<String[]>>();
+        for (int i = 0; i < this.buckets.size(); i++) {
+            Stack<Iterator<IndexEntry>> stack = new Stack<Iterator<IndexEntry>>();
+            stack.push(this.buckets.get(i).iterator());
+            while (!stack.isEmpty()) {
+                Iterator<IndexEntry> iterator = stack.pop();
+                if (iterator.hasNext()) {
+                    IndexEntry entry = iterator.next();
+                    stack.push(iterator);
+                    bucketOf.put(entry, i);
+                    topics.put(entry, resolveTopics(entry, topicIndex));
+                    stack.push(entry.getSubEntries().values().iterator());
+                }
+            }
+        }
+    }
+
+    private static String bucketLabel(String keyword) {
+        if (keyword == null || keyword.length() == 0 || !Character.isLetterOrDigit(keyword.charAt(0))) {
+            return "#";
+        }
+        return keyword.substring(0, 1).toUpperCase();
+    }
+
+    private static List<String[]> resolveTopics(IndexEntry entry, TopicIndex topicIndex) {
+        List<String[]> topics = new ArrayList<String[]>(entry.getTopics().size());
+        for (IndexTopic topic : entry.getTopics()) {
+            String title = topic.getTitle();
+            String href = topic.getHref();
+            int hashIndex = href.indexOf('#');
+            if (title == null) {
+                TopicIndex.Match tocTopic = topicIndex.find(topic.getBundle(), href);
+                if (tocTopic != null) {
+                    title = tocTopic.getEntry().getLabel();
+                }
+            }
+            if (title != null) {
+                if (hashIndex == -1) {
+                    href = href + "?keywords";
+                } else {
+                    href = href.substring(0, hashIndex) + "?keywords" + href.substring(hashIndex);
+                }
+                topics.add(new String[]{topic.getBundle() + "/" + href, title});
+            }
+        }
+        Collections.sort(topics, new Comparator<String[]>() {
+            public int compare(String[] o1, String[] o2) {
+                return o1[1].compareToIgnoreCase(o2[1]);
+            }
+        });
+        return Collections.unmodifiableList(topics);
+    }
+
+    /**
+     * Returns the labels of the buckets, the position of a label is the id of its bucket.
+     */
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    /**
+     * Returns the UTF-8 encoded {@code <li>} elements of a bucket.
+     *
+     * @param contextPath the context path that the links are relative to.
+     * @param bucket      the id of the bucket.
+     * @return the markup or {@code null} if there is no such bucket.
+     */
+    public byte[] getHtml(String contextPath, int bucket) {
+        if (bucket < 0 || bucket >= buckets.size()) {
+            return null;
+        }
+        byte[][] html = rendered.get(contextPath);
+        if (html == null) {
+            // every bucket is rendered before the array is shared, rendering them twice in a race is harmless
+            html = render(contextPath);
+            byte[][] existing = rendered.putIfAbsent(contextPath, html);
+            if (existing != null) {
+                html = existing;
+            }
+        }
+        return html[bucket];
+    }
+
+    private byte[][] render(String contextPath) {
+        byte[][] html = new byte[buckets.size()][];
+        for (int i = 0; i < html.length; i++) {
+            StringBuilder out = new StringBuilder();
+            for (IndexEntry entry : buckets.get(i)) {
+                appendEntry(out, contextPath, entry);
+            }
+            try {
+                html[i] = out.toString().getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("JVM does not support UTF-8", e);
+            }
+        }
+        return html;
+    }
+
+    private void appendEntry(StringBuilder out, String contextPath, IndexEntry entry) {
+        out.append("<li id=\"kwdidx-");
+        out.append(keywords.getId(entry));
+        out.append("\"><span>");
+        out.append(StringEscapeUtils.escapeHtml4(entry.getKeyword()));
+        out.append("</span>");
+        if (!entry.hasChildren()) {
+            out.append("</li>");
+            return;
+        }
+        out.append("<ul>");
+        for (String[] topic : topics.get(entry)) {
+            out.append("<li><a href=\"");
+            out.append(contextPath);
+            out.append("/docs/");
+            out.append(topic[0]);
+            out.append("\">");
+            out.append(StringEscapeUtils.escapeHtml4(topic[1]));
+            out.append("</a></li>");
+        }
+        for (IndexSee see : entry.getSees()) {
+            final IndexEntry indexEntry = keywords.findEntry(see.getKeywordPath());
+            if (indexEntry != null) {
+                final String id = keywords.getId(indexEntry);
+                if (id != null) {
+                    StringBuilder buf = new StringBuilder();
+                    boolean first = true;
+                    for (String keyword : see.getKeywordPath()) {
+                        if (first) {
+                            first = false;
+                        } else {
+                            buf.append(", ");
+                        }
+                        buf.append(keyword);
+                    }
+                    out.append("<li>");
+                    // the target may be in a different bucket
+                    final String linkHtml = MessageFormat.format(
+                            "<a href=\"{0}\" ts-immediate=\"true\" data-ts-bucket=\"{1}\">{2}</a>",
+                            "#kwdidx-" + id, String.valueOf(bucketOf.get(indexEntry)),
+                            StringEscapeUtils.escapeHtml4(buf.toString()));
+                    out.append(MessageFormat.format("See {0}", linkHtml));
+                    out.append("</li>");
+                }
+            }
+        }
+        for (IndexEntry subEntry : entry.getSubEntries().values()) {
+            appendEntry(out, contextPath, subEntry);
+        }
+        out.append("</ul></li>");
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.lang3.StringUtils;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Serves one bucket of the keyword index as an HTML fragment. The bucket is addressed as {@code /keywords/<id>}
+ * where the id is the position of the bucket label in {@link KeywordsRenderer#getLabels()}.
+ */
+public class KeywordsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        HelpSnapshot snapshot = ServletContextListenerImpl.getSnapshot(req, getServletContext());
+        KeywordsRenderer renderer = snapshot.getKeywordsRenderer();
+        String bucket = StringUtils.removeEnd(StringUtils.removeStart(req.getPathInfo(), "/"), "/");
+        byte[] bytes = null;
+        if (renderer != null && StringUtils.isNumeric(bucket) && bucket.length() > 0 && bucket.length() < 10) {
+            bytes = renderer.getHtml(req.getContextPath(), Integer.parseInt(bucket));
+        }
+        if (bytes == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        resp.setContentType("text/html;charset=UTF-8");
+        resp.setContentLength(bytes.length);
+        // bucket ids are positions, so a reload can give an id different keywords and only the default applies
+        String cacheControl = snapshot.getCacheControl(null);
+        if (cacheControl != null) {
+            resp.setHeader("Cache-Control", cacheControl);
+        }
+        OutputStream out = resp.getOutputStream();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
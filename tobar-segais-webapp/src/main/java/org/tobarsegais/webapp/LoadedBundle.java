@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.tobarsegais.webapp.data.IndexEntry;
+import org.tobarsegais.webapp.data.Toc;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of parsing a single bundle jar. A bundle that could not be added has a {@code null} {@link #getToc()}.
+ */
+public class LoadedBundle {
+
+    private final String path;
+    private final String fileKey;
+    private final String symbolicName;
+    private final String fingerprint;
+    private final Toc toc;
+    private final List<IndexEntry> keywords;
+    private final boolean upToDate;
+
+    public LoadedBundle(String path, String fileKey, String symbolicName, String fingerprint, Toc toc,
+                        List<IndexEntry> keywords, boolean upToDate) {
+        this.path = path;
+        this.fileKey = fileKey;
+        this.symbolicName = symbolicName;
+        this.fingerprint = fingerprint;
+        this.toc = toc;
+        this.keywords = keywords == null ? Collections.<IndexEntry>emptyList() : keywords;
+        this.upToDate = upToDate;
+    }
+
+    /**
+     * Returns the resource path of the jar, e.g. {@code /WEB-INF/bundles/foo.jar}.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the name of the jar without the {@code .jar} extension.
+     */
+    public String getFileKey() {
+        return fileKey;
+    }
+
+    /**
+     * Returns the {@code Bundle-SymbolicName} or {@code null} if the jar does not have one.
+     */
+    public String getSymbolicName() {
+        return symbolicName;
+    }
+
+    /**
+     * Returns the key that the bundle is published under.
+     */
+    public String getKey() {
+        return symbolicName == null ? fileKey : symbolicName;
+    }
+
+    /**
+     * Returns the {@link BundleFingerprint} of the jar or {@code null} if the content is not being indexed.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public Toc getToc() {
+        return toc;
+    }
+
+    public List<IndexEntry> getKeywords() {
+        return keywords;
+    }
+
+    /**
+     * Returns {@code true} if the search index already holds the documents of this exact jar, in which case they
+     * were not indexed again.
+     */
+    public boolean isUpToDate() {
+        return upToDate;
+    }
+}
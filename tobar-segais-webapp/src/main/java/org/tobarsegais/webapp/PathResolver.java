@@ -0,0 +1,176 @@
+/*
+ * Copyright 2011 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves request paths to redirects, aliases and bundles. The keys are held in a trie of path segments so that
+ * every prefix of a request path is resolved in a single walk rather than a series of map lookups per prefix.
+ */
+public class PathResolver {
+
+    public enum Kind {
+        /**
+         * A {@code permanent-redirect.properties} source, the target is the bundle to redirect to.
+         */
+        REDIRECT,
+        /**
+         * A {@code temporary-redirect.properties} source, the target is the bundle to redirect to.
+         */
+        ALIAS,
+        /**
+         * A bundle jar name or symbolic name, the target is the name of the jar without the {@code .jar} extension.
+         */
+        BUNDLE
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * Creates the resolver.
+     *
+     * @param fileKeys  the names of the bundle jars without the {@code .jar} extension.
+     * @param bundles   the bundle symbolic names mapped to the names of their jars.
+     * @param redirects the permanent redirects.
+     * @param aliases   the temporary redirects.
+     */
+    public PathResolver(Collection<String> fileKeys, Map<String, String> bundles, Map<String, String> redirects,
+                        Map<String, String> aliases) {
+        for (String fileKey : fileKeys) {
+            node(fileKey).bundle = fileKey;
+        }
+        // symbolic names take priority over jar names
+        for (Map.Entry<String, String> entry : bundles.entrySet()) {
+            node(entry.getKey()).bundle = entry.getValue();
+        }
+        for (Map.Entry<String, String> entry : redirects.entrySet()) {
+            node(entry.getKey()).redirect = entry.getValue();
+        }
+        for (Map.Entry<String, String> entry : aliases.entrySet()) {
+            node(entry.getKey()).alias = entry.getValue();
+        }
+    }
+
+    private Node node(String key) {
+        Node node = root;
+        int start = 0;
+        for (int index = key.indexOf('/'); ; index = key.indexOf('/', start)) {
+            String segment = index == -1 ? key.substring(start) : key.substring(start, index);
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node();
+                node.children.put(segment, child);
+            }
+            node = child;
+            if (index == -1) {
+                return node;
+            }
+            start = index + 1;
+        }
+    }
+
+    /**
+     * Resolves every prefix of the path that ends in a {@code /}, shortest first. Where a prefix is registered as
+     * more than one kind the matches are returned in the order redirect, alias, bundle. The empty prefix never
+     * matches.
+     *
+     * @param path the request path.
+     * @return the matches, never {@code null}.
+     */
+    public List<Match> resolve(String path) {
+        List<Match> result = null;
+        Node node = root;
+        int start = path.startsWith("/") ? 1 : 0;
+        for (int index = path.indexOf('/', start); index != -1; index = path.indexOf('/', index + 1)) {
+            node = node.children.get(path.substring(start, index));
+            if (node == null) {
+                break;
+            }
+            start = index + 1;
+            if (node.redirect == null && node.alias == null && node.bundle == null) {
+                continue;
+            }
+            if (result == null) {
+                result = new ArrayList<Match>(1);
+            }
+            if (node.redirect != null) {
+                result.add(new Match(Kind.REDIRECT, node.redirect, index));
+            }
+            if (node.alias != null) {
+                result.add(new Match(Kind.ALIAS, node.alias, index));
+            }
+            if (node.bundle != null) {
+                result.add(new Match(Kind.BUNDLE, node.bundle, index));
+            }
+        }
+        return result == null ? Collections.<Match>emptyList() : result;
+    }
+
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<String, Node>();
+        private String redirect;
+        private String alias;
+        private String bundle;
+    }
+
+    /**
+     * A prefix of a request path that resolved to something.
+     */
+    public static class Match {
+        private final Kind kind;
+        private final String target;
+        private final int index;
+
+        public Match(Kind kind, String target, int index) {
+            this.kind = kind;
+            this.target = target;
+            this.index = index;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * Returns the index of the {@code /} that ends the matched prefix in the request path.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Match");
+            sb.append("{kind=").append(kind);
+            sb.append(", target='").append(target).append('\'');
+            sb.append(", index=").append(index);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
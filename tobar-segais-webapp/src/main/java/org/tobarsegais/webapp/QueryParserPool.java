@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.Version;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Parses search queries from any number of threads. A {@link QueryParser} keeps state while it parses, so each
+ * parse borrows a parser of its own from a lock-free pool and returns it afterwards. The pool grows to the number
+ * of concurrent searches and is dropped along with the snapshot, so unlike a {@link ThreadLocal} it does not leave
+ * parsers behind on the container threads when the webapp is redeployed.
+ */
+public class QueryParserPool {
+
+    private final Version version;
+
+    private final String field;
+
+    private final Analyzer analyzer;
+
+    private final Queue<QueryParser> parsers = new ConcurrentLinkedQueue<QueryParser>();
+
+    /**
+     * Creates the pool.
+     *
+     * @param version  the Lucene version to match.
+     * @param field    the default field of the queries.
+     * @param analyzer the analyzer to use on the terms of the queries.
+     */
+    public QueryParserPool(Version version, String field, Analyzer analyzer) {
+        this.version = version;
+        this.field = field;
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Parses a query.
+     *
+     * @param query the query as entered by the user.
+     * @return the parsed query.
+     * @throws ParseException if the query is malformed.
+     */
+    public Query parse(String query) throws ParseException {
+        QueryParser parser = parsers.poll();
+        if (parser == null) {
+            parser = new QueryParser(version, field, analyzer);
+        }
+        try {
+            return parser.parse(query);
+        } finally {
+            parsers.offer(parser);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds recent pages of search results so that popular queries do not run against the index every time. Pages are
+ * keyed by the parsed query, so queries that only differ in case or spacing share an entry, together with the page
+ * window. Every entry belongs to one version of the search index, the cache empties itself the first time it is
+ * asked about a newer version. Requests still searching an older version while a reload goes live bypass the cache.
+ * The least recently used pages are evicted first.
+ */
+public class SearchResultCache {
+
+    private final int maxEntries;
+
+    private final Map<String, SearchResults> entries = new LinkedHashMap<String, SearchResults>(16, 0.75f, true);
+
+    private long version;
+
+    private boolean versioned;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long invalidations;
+
+    /**
+     * Creates the cache.
+     *
+     * @param maxEntries the maximum number of pages to keep, {@code 0} disables the cache.
+     */
+    public SearchResultCache(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+    }
+
+    /**
+     * Returns the key of a page of results.
+     *
+     * @param query the normalized query, i.e. the {@code toString()} of the parsed query.
+     * @param start the position of the first hit of the page.
+     * @param size  the number of hits per page.
+     * @return the key.
+     */
+    public static String key(String query, int start, int size) {
+        return start + ":" + size + ":" + query;
+    }
+
+    /**
+     * Returns the page cached under the key or {@code null}.
+     *
+     * @param version the version of the index being searched.
+     * @param key     the key.
+     * @return the page or {@code null}.
+     */
+    public synchronized SearchResults get(long version, String key) {
+        if (maxEntries == 0) {
+            return null;
+        }
+        if (versioned && version < this.version) {
+            return null;
+        }
+        if (!versioned || this.version != version) {
+            if (!entries.isEmpty()) {
+                invalidations++;
+                entries.clear();
+            }
+            this.version = version;
+            versioned = true;
+        }
+        SearchResults results = entries.get(key);
+        if (results == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return results;
+    }
+
+    /**
+     * Caches a page, unless it came from a different version of the index than the one the cache holds.
+     *
+     * @param version the version of the index the page came from.
+     * @param key     the key.
+     * @param results the page.
+     */
+    public synchronized void put(long version, String key, SearchResults results) {
+        if (maxEntries == 0 || !versioned || this.version != version) {
+            return;
+        }
+        entries.put(key, results);
+        while (entries.size() > maxEntries) {
+            entries.remove(entries.keySet().iterator().next());
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes all the cached pages.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of times the cache was emptied because the search index changed.
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the fraction of lookups that found a page, or {@code 0} if there were no lookups.
+     */
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("SearchResultCache");
+        sb.append("{count=").append(entries.size());
+        sb.append(", maxEntries=").append(maxEntries);
+        sb.append(", hits=").append(hits);
+        sb.append(", misses=").append(misses);
+        sb.append(", hitRate=").append(String.format("%.3f", getHitRate()));
+        sb.append(", evictions=").append(evictions);
+        sb.append(", invalidations=").append(invalidations);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of search results.
+ */
+public class SearchResults {
+
+    private final int start;
+
+    private final int size;
+
+    private final List<Hit> hits;
+
+    private final int totalHits;
+
+    private final boolean more;
+
+    private final String after;
+
+    public SearchResults(int start, int size, List<Hit> hits, int totalHits, boolean more, String after) {
+        this.start = start;
+        this.size = size;
+        this.hits = Collections.unmodifiableList(hits);
+        this.totalHits = totalHits;
+        this.more = more;
+        this.after = after;
+    }
+
+    /**
+     * Returns the position of the first hit of the page within all the hits.
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the requested number of hits per page.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public List<Hit> getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the total number of hits.
+     */
+    public int getTotalHits() {
+        return totalHits;
+    }
+
+    /**
+     * Returns {@code true} if there is another page after this one.
+     */
+    public boolean isMore() {
+        return more;
+    }
+
+    /**
+     * Returns the token to pass as {@code after} when asking for the next page, or {@code null} if there is no next
+     * page.
+     */
+    public String getAfter() {
+        return after;
+    }
+
+    /**
+     * A single hit.
+     */
+    public static class Hit {
+
+        private final String title;
+
+        private final String href;
+
+        private final String bundle;
+
+        private final float score;
+
+        private final String snippet;
+
+        public Hit(String title, String href, String bundle, float score, String snippet) {
+            this.title = title;
+            this.href = href;
+            this.bundle = bundle;
+            this.score = score;
+            this.snippet = snippet;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        /**
+         * Returns the path of the topic relative to {@code /docs/}, including any fragment.
+         */
+        public String getHref() {
+            return href;
+        }
+
+        /**
+         * Returns the key of the bundle holding the topic.
+         */
+        public String getBundle() {
+            return bundle;
+        }
+
+        public float getScore() {
+            return score;
+        }
+
+        /**
+         * Returns the snippet of the topic as HTML, or {@code null} if snippets are not stored.
+         */
+        public String getSnippet() {
+            return snippet;
+        }
+    }
+}
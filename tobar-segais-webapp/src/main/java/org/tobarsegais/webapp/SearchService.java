@@ -0,0 +1,220 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.document.CompressionTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+import javax.servlet.ServletRequest;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+
+/**
+ * Runs searches one page at a time. The first pages are found by collecting just enough hits to fill them, later
+ * pages can continue after the last hit of the previous page so that paging deep into the results does not collect
+ * every hit before the page. Only the hits on the page have their stored fields loaded, including the stored body
+ * text their snippets are made from when {@code search.snippets} is enabled. Pages are kept in the
+ * {@link SearchResultCache} of the snapshot, so a popular query is only run once per version of the index.
+ */
+public final class SearchService {
+
+    /**
+     * The number of hits per page when the request does not say.
+     */
+    public static final int DEFAULT_SIZE = 20;
+
+    /**
+     * The largest number of hits per page a request can ask for.
+     */
+    public static final int MAX_SIZE = 200;
+
+    /**
+     * Only the stored fields shown in the results.
+     */
+    private static final FieldSelector FIELDS = new MapFieldSelector("title", "href");
+
+    /**
+     * The stored fields shown in the results when snippets are enabled.
+     */
+    private static final FieldSelector FIELDS_WITH_SNIPPETS = new MapFieldSelector("title", "href", Snippets.FIELD);
+
+    private SearchService() {
+    }
+
+    /**
+     * Returns the page of hits asked for by the {@code query}, {@code start}, {@code size} and {@code after}
+     * parameters of a request.
+     *
+     * @param snapshot the snapshot to search.
+     * @param request  the request.
+     * @return the page or {@code null} if the request has no query or search is unavailable.
+     * @throws ParseException if the query is malformed.
+     * @throws IOException    if the search index could not be read.
+     */
+    public static SearchResults search(HelpSnapshot snapshot, ServletRequest request)
+            throws ParseException, IOException {
+        String query = request.getParameter("query");
+        if (StringUtils.isBlank(query)) {
+            return null;
+        }
+        int defaultSize = NumberUtils.toInt(snapshot.getInitParameter("search.page.size"), DEFAULT_SIZE);
+        return search(snapshot, query, NumberUtils.toInt(request.getParameter("start"), 0),
+                NumberUtils.toInt(request.getParameter("size"), defaultSize), request.getParameter("after"));
+    }
+
+    /**
+     * Returns one page of hits.
+     *
+     * @param snapshot the snapshot to search.
+     * @param query    the query as entered by the user.
+     * @param start    the position of the first hit of the page.
+     * @param size     the number of hits per page.
+     * @param after    the {@link SearchResults#getAfter()} token of the previous page, or {@code null}.
+     * @return the page or {@code null} if search is unavailable.
+     * @throws ParseException if the query is malformed.
+     * @throws IOException    if the search index could not be read.
+     */
+    public static SearchResults search(HelpSnapshot snapshot, String query, int start, int size, String after)
+            throws ParseException, IOException {
+        IndexSearcher searcher = snapshot.getSearcher();
+        if (searcher == null) {
+            return null;
+        }
+        start = Math.max(0, start);
+        size = Math.max(1, Math.min(MAX_SIZE, size));
+        Query q = snapshot.getContentsQueryParser().parse(query);
+        long version = searcher.getIndexReader().getVersion();
+        SearchResultCache cache = snapshot.getSearchResultCache();
+        // a page found from the start can answer a request that has a token, but not the other way round
+        String key = SearchResultCache.key(q.toString(), start, size);
+        if (cache != null) {
+            SearchResults cached = cache.get(version, key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        ScoreDoc afterDoc = start > 0 ? parseAfter(after, version, q, start) : null;
+        TopDocs topDocs;
+        int skip;
+        if (afterDoc != null) {
+            topDocs = searcher.searchAfter(afterDoc, q, size + 1);
+            skip = 0;
+        } else {
+            // one more than the page so that we know whether there is a next page
+            int count = (int) Math.min((long) start + size + 1, Math.max(1, searcher.maxDoc()));
+            topDocs = searcher.search(q, count);
+            skip = start;
+        }
+        ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+        boolean snippets = Boolean.parseBoolean(snapshot.getInitParameter("search.snippets"));
+        Set<String> terms = snippets && scoreDocs.length > skip
+                ? Snippets.terms(searcher, q)
+                : Collections.<String>emptySet();
+        List<SearchResults.Hit> hits = new ArrayList<SearchResults.Hit>(size);
+        ScoreDoc last = null;
+        for (int i = skip; i < scoreDocs.length && hits.size() < size; i++) {
+            Document document = searcher.doc(scoreDocs[i].doc, snippets ? FIELDS_WITH_SNIPPETS : FIELDS);
+            String href = document.get("href");
+            int slash = href.indexOf('/');
+            String snippet = null;
+            byte[] body = snippets ? document.getBinaryValue(Snippets.FIELD) : null;
+            if (body != null) {
+                try {
+                    snippet = Snippets.create(snapshot.getAnalyzer(), terms,
+                            CompressionTools.decompressString(body));
+                } catch (DataFormatException e) {
+                    // leave the hit without a snippet
+                }
+            }
+            hits.add(new SearchResults.Hit(document.get("title"), href,
+                    slash == -1 ? null : href.substring(0, slash), scoreDocs[i].score, snippet));
+            last = scoreDocs[i];
+        }
+        boolean more = scoreDocs.length > skip + hits.size();
+        SearchResults results = new SearchResults(start, size, hits, topDocs.totalHits, more,
+                more && last != null ? formatAfter(last, version, q, start + size) : null);
+        if (cache != null && afterDoc == null) {
+            // the token comes from the client, so a page found with one is only trusted by this request
+            cache.put(version, key, results);
+        }
+        return results;
+    }
+
+    /**
+     * Returns the link to the topic of a hit, which carries the query so that the topic page shows the results too.
+     *
+     * @param contextPath the context path of the webapp.
+     * @param query       the query.
+     * @param hit         the hit.
+     * @return the link.
+     * @throws UnsupportedEncodingException never.
+     */
+    public static String getLink(String contextPath, String query, SearchResults.Hit hit)
+            throws UnsupportedEncodingException {
+        String href = hit.getHref();
+        int hashIndex = href.indexOf('#');
+        String hash = hashIndex == -1 ? "" : href.substring(hashIndex);
+        href = hashIndex == -1 ? href : href.substring(0, hashIndex);
+        return contextPath + "/docs/" + href + "?query=" + URLEncoder.encode(query, "UTF-8") + hash;
+    }
+
+    /**
+     * The token is only good for the version of the index it came from, doc ids change when the index does, and for
+     * the page of the query it was handed out for, so a token from a stale tab or another query is ignored.
+     */
+    private static String formatAfter(ScoreDoc scoreDoc, long version, Query query, int start) {
+        return Long.toString(version, 36) + "." + pageHash(query, start) + "." + Integer.toString(scoreDoc.doc, 36)
+                + "." + Integer.toString(Float.floatToIntBits(scoreDoc.score), 36);
+    }
+
+    private static ScoreDoc parseAfter(String after, long version, Query query, int start) {
+        if (after == null) {
+            return null;
+        }
+        String[] parts = after.split("\\.");
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            if (Long.parseLong(parts[0], 36) != version || !pageHash(query, start).equals(parts[1])) {
+                return null;
+            }
+            return new ScoreDoc(Integer.parseInt(parts[2], 36), Float.intBitsToFloat(Integer.parseInt(parts[3], 36)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String pageHash(Query query, int start) {
+        return Integer.toString((query.toString() + ":" + start).hashCode() & Integer.MAX_VALUE, 36);
+    }
+}
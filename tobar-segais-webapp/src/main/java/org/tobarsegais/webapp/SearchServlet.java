@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.queryParser.ParseException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Serves one page of search results as JSON, so that the browser can show the results without rendering the whole
+ * docs page. Takes the same {@code query}, {@code start}, {@code size} and {@code after} parameters as the search
+ * tab and returns
+ * <pre>
+ * {"start":0,"size":20,"total":42,"more":true,"after":"...",
+ *  "hits":[{"title":"...","href":"...","bundle":"...","score":1.5,"snippet":"..."}, ...]}
+ * </pre>
+ * where {@code after} is only present when there is a next page and {@code snippet} is HTML that is only present when {@code search.snippets} is
+ * enabled. A malformed query is answered with a {@code 400} and {@code {"error":"..."}}.
+ */
+public class SearchServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        HelpSnapshot snapshot = ServletContextListenerImpl.getSnapshot(req, getServletContext());
+        String query = req.getParameter("query");
+        if (StringUtils.isBlank(query)) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        StringBuilder json = new StringBuilder();
+        SearchResults results;
+        try {
+            results = SearchService.search(snapshot, req);
+        } catch (ParseException e) {
+            json.append('{');
+            Json.appendProperty(json, "error", e.getMessage());
+            json.append('}');
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            send(resp, snapshot, json);
+            return;
+        }
+        if (results == null) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        json.append('{');
+        Json.appendString(json, "start").append(':').append(results.getStart()).append(',');
+        Json.appendString(json, "size").append(':').append(results.getSize()).append(',');
+        Json.appendString(json, "total").append(':').append(results.getTotalHits()).append(',');
+        Json.appendString(json, "more").append(':').append(results.isMore()).append(',');
+        if (results.getAfter() != null) {
+            Json.appendProperty(json, "after", results.getAfter()).append(',');
+        }
+        Json.appendString(json, "hits").append(':').append('[');
+        boolean first = true;
+        for (SearchResults.Hit hit : results.getHits()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('{');
+            Json.appendProperty(json, "title", hit.getTitle()).append(',');
+            Json.appendProperty(json, "href", SearchService.getLink(req.getContextPath(), query, hit)).append(',');
+            Json.appendProperty(json, "bundle", hit.getBundle()).append(',');
+            float score = hit.getScore();
+            Json.appendString(json, "score").append(':')
+                    .append(Float.isNaN(score) || Float.isInfinite(score) ? 0f : score);
+            if (hit.getSnippet() != null) {
+                json.append(',');
+                Json.appendProperty(json, "snippet", hit.getSnippet());
+            }
+            json.append('}');
+        }
+        json.append(']');
+        json.append('}');
+        send(resp, snapshot, json);
+    }
+
+    private static void send(HttpServletResponse resp, HelpSnapshot snapshot, StringBuilder json)
+            throws IOException {
+        byte[] bytes = json.toString().getBytes("UTF-8");
+        resp.setContentType(Json.CONTENT_TYPE);
+        resp.setContentLength(bytes.length);
+        // results change whenever the bundles do, so only the default applies rather than the application/* one
+        String cacheControl = snapshot.getCacheControl(null);
+        if (cacheControl != null) {
+            resp.setHeader("Cache-Control", cacheControl);
+        }
+        OutputStream out = resp.getOutputStream();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -20,15 +20,21 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.CompressionTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.Version;
-import org.jsoup.Jsoup;
 import org.tobarsegais.webapp.data.Extension;
 import org.tobarsegais.webapp.data.Index;
 import org.tobarsegais.webapp.data.IndexEntry;
@@ -39,26 +45,36 @@ import org.tobarsegais.webapp.data.TocEntry;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
 import javax.xml.stream.XMLStreamException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.JarURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -68,22 +84,36 @@ import java.util.regex.PatternSyntaxException;
 /**
  * Loads all the bundles.
  */
-public class ServletContextListenerImpl implements ServletContextListener {
+public class ServletContextListenerImpl implements ServletContextListener, ServletRequestListener {
 
     public static final String BUNDLE_PATH = "/WEB-INF/bundles";
 
     public static final Version LUCENE_VERSON = Version.LUCENE_36;
 
+    /**
+     * The name of the context attribute holding the reference to the current {@link HelpSnapshot}.
+     */
+    private static final String SNAPSHOT = HelpSnapshot.class.getName();
+
     public void contextInitialized(ServletContextEvent sce) {
         ServletContext application = sce.getServletContext();
-        Map<String, String> bundles = new HashMap<String, String>();
+        application.setAttribute(SNAPSHOT, new SnapshotReference(new HelpSnapshot(loadContextParams(application))));
+        BundleRegistry registry = new BundleRegistry();
         Map<String, String> redirects = new HashMap<String, String>();
         Map<String, String> aliases = new HashMap<String, String>();
-        Map<String, Toc> contents = new LinkedHashMap<String, Toc>();
-        List<IndexEntry> keywords = new ArrayList<IndexEntry>();
-        Directory index = new RAMDirectory();
+        List<Pattern> sequence = null;
+        // the bundles keyed by resource path, kept for reloading
+        Map<String, LoadedBundle> loaded = new LinkedHashMap<String, LoadedBundle>();
+        Map<String, String> stamps = new HashMap<String, String>();
         Analyzer analyzer = new StandardAnalyzer(LUCENE_VERSON);
+        Directory index = openDirectory(application);
+        // the fingerprints and bundles of a persistent index left over from a previous start
+        Set<String> indexedFingerprints = new HashSet<String>();
+        Set<String> indexedBundles = new HashSet<String>();
+        boolean reuse = readIndexedBundles(application, index, indexedFingerprints, indexedBundles);
         IndexWriterConfig indexWriterConfig = new IndexWriterConfig(LUCENE_VERSON, analyzer);
+        indexWriterConfig.setOpenMode(
+                reuse ? IndexWriterConfig.OpenMode.CREATE_OR_APPEND : IndexWriterConfig.OpenMode.CREATE);
         IndexWriter indexWriter;
         try {
             indexWriter = new IndexWriter(index, indexWriterConfig);
@@ -95,225 +125,303 @@ public class ServletContextListenerImpl implements ServletContextListener {
         if (paths == null) {
             application.log(String.format("Could not find any bundles at %s", BUNDLE_PATH));
         } else {
-            for (String path : paths) {
-                if (path.endsWith(".jar")) {
-                    String key = path.substring("/WEB-INF/bundles/".length(), path.lastIndexOf(".jar"));
-                    application.log("Parsing " + path);
-                    URLConnection connection = null;
+            // taken before anything is read so that a jar changed while loading is picked up by the first reload
+            stamps.putAll(BundleWatcher.scan(application, paths));
+            final int threads = getLoaderThreads(application);
+            application.log(String.format("Loading bundles using %d thread%s", threads, threads == 1 ? "" : "s"));
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new LoaderThreadFactory());
+            List<Future<LoadedBundle>> loading = new ArrayList<Future<LoadedBundle>>();
+            try {
+                for (String path : paths) {
+                    if (path.endsWith(".jar")) {
+                        loading.add(executor.submit(
+                                new BundleLoader(application, registry, path, indexWriter, indexedFingerprints)));
+                    }
+                }
+                sequence = readBundleSettings(application, paths, redirects, aliases);
+                // merge in the same order as the bundles were discovered so that the results do not depend on
+                // which worker finished first
+                for (Future<LoadedBundle> future : loading) {
+                    LoadedBundle bundle;
                     try {
-                        URL url = new URL("jar:" + application.getResource(path) + "!/");
-                        connection = url.openConnection();
-                        if (!(connection instanceof JarURLConnection)) {
-                            application.log(path + " is not a jar file, ignoring");
-                            continue;
+                        bundle = future.get();
+                    } catch (ExecutionException e) {
+                        application.log("Could not load bundle due to " + e.getCause().getMessage(), e.getCause());
+                        continue;
+                    }
+                    if (bundle == null) {
+                        continue;
+                    }
+                    // the loader has already indexed the topics
+                    if (indexWriter != null && bundle.getToc() != null) {
+                        indexedBundles.remove(bundle.getFileKey());
+                        if (bundle.isUpToDate()) {
+                            application.log("Reusing search index of " + bundle.getPath());
                         }
-                        JarURLConnection jarConnection = (JarURLConnection) connection;
-                        JarFile jarFile = jarConnection.getJarFile();
-                        Manifest manifest = jarFile.getManifest();
-                        if (manifest != null) {
-                            String symbolicName = manifest.getMainAttributes().getValue("Bundle-SymbolicName");
-                            if (symbolicName != null) {
-                                int i = symbolicName.indexOf(';');
-                                if (i != -1) {
-                                    symbolicName = symbolicName.substring(0, i);
-                                }
-                                bundles.put(symbolicName, key);
-                                key = symbolicName;
-                            }
+                    }
+                    loaded.put(bundle.getPath(), bundle);
+                }
+                if (indexWriter != null) {
+                    // whatever is left has been removed since the index was written
+                    for (String fileKey : indexedBundles) {
+                        application.log("Removing " + fileKey + " from the search index");
+                        try {
+                            indexWriter.deleteDocuments(new Term("bundle", fileKey));
+                        } catch (IOException e) {
+                            application.log("Could not remove " + fileKey + " from the search index due to "
+                                    + e.getMessage(), e);
                         }
+                    }
+                }
+            } catch (InterruptedException e) {
+                application.log("Interrupted while loading bundles", e);
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        SearcherManager searcherManager = null;
+        if (indexWriter != null) {
+            try {
+                indexWriter.close();
+            } catch (IOException e) {
+                application.log("Cannot create search index. Search will be unavailable.", e);
+            }
+            try {
+                searcherManager = new SearcherManager(index, null);
+            } catch (IOException e) {
+                application.log("Cannot open search index. Search will be unavailable.", e);
+            }
+        }
 
-                        JarEntry pluginEntry = jarFile.getJarEntry("plugin.xml");
-                        if (pluginEntry == null) {
-                            application.log(path + " does not contain a plugin.xml file, ignoring");
-                            continue;
-                        }
-                        Plugin plugin = Plugin.read(jarFile.getInputStream(pluginEntry));
+        long maxEntryBytes = getLongInitParameter(application, "content-cache.max-entry-bytes", 0);
+        boolean offHeap = Boolean.parseBoolean(getInitParameter(application, "content-cache.off-heap"));
+        File tempDir = (File) application.getAttribute("javax.servlet.context.tempdir");
+        setSnapshot(application, getSnapshot(application)
+                .withSearch(indexWriter != null ? index : null, searcherManager, analyzer,
+                        new QueryParserPool(LUCENE_VERSON, "contents", analyzer))
+                .withCaches(new ContentCache("content",
+                        getLongInitParameter(application, "content-cache.max-bytes", 0), maxEntryBytes, offHeap),
+                        new ContentCache("compressed",
+                                getLongInitParameter(application, "content.compress.cache.max-bytes", 0),
+                                maxEntryBytes, offHeap),
+                        new ContentCache("page",
+                                getLongInitParameter(application, "page-cache.max-bytes", 0), maxEntryBytes,
+                                offHeap),
+                        new TopicBodyCache(getLongInitParameter(application, "topic-body-cache.max-chars", 0)),
+                        new ExpandedEntryCache(new File(
+                                tempDir != null ? tempDir : new File(System.getProperty("java.io.tmpdir")),
+                                "expanded-entries")),
+                        new SearchResultCache((int) getLongInitParameter(application, "search-cache.max-entries",
+                                0))));
+        publish(application, registry, loaded.values(), redirects, aliases, sequence);
+        long statsInterval = getLongInitParameter(application, "cache.stats.interval", 0);
+        if (statsInterval > 0) {
+            CacheStatisticsLogger statistics = new CacheStatisticsLogger(application);
+            statistics.start(statsInterval);
+            application.setAttribute("cacheStatisticsLogger", statistics);
+        }
+        long reloadInterval = getLongInitParameter(application, "bundles.reload.interval", 0);
+        if (reloadInterval > 0) {
+            application.log(String.format("Checking for changed bundles every %d second%s", reloadInterval,
+                    reloadInterval == 1 ? "" : "s"));
+            BundleWatcher watcher = new BundleWatcher(application, loaded, stamps);
+            watcher.start(reloadInterval);
+            application.setAttribute("bundleWatcher", watcher);
+        }
+    }
 
-                        Extension tocExtension = plugin.getExtension("org.eclipse.help.toc");
-                        if (tocExtension == null || tocExtension.getFile("toc") == null) {
-                            application.log(path + " does not contain a 'org.eclipse.help.toc' extension, ignoring");
-                            continue;
-                        }
-                        JarEntry tocEntry = jarFile.getJarEntry(tocExtension.getFile("toc"));
-                        if (tocEntry == null) {
-                            application.log(path + " is missing the referenced toc: " + tocExtension.getFile("toc")
-                                    + ", ignoring");
-                            continue;
-                        }
-                        Toc toc;
-                        try {
-                            toc = Toc.read(jarFile.getInputStream(tocEntry));
-                        } catch (IllegalStateException e) {
-                            application.log("Could not parse " + path + " due to " + e.getMessage(), e);
-                            continue;
-                        }
-                        contents.put(key, toc);
-
-                        Extension indexExtension = plugin.getExtension("org.eclipse.help.index");
-                        if (indexExtension != null && indexExtension.getFile("index") != null) {
-                            JarEntry indexEntry = jarFile.getJarEntry(indexExtension.getFile("index"));
-                            if (indexEntry != null) {
-                                try {
-                                    keywords.addAll(Index.read(key, jarFile.getInputStream(indexEntry)).getChildren());
-                                } catch (IllegalStateException e) {
-                                    application.log("Could not parse " + path + " due to " + e.getMessage(), e);
-                                }
-                            } else {
-                                application.log(path + " is missing the referenced index: " + indexExtension
-                                        .getFile("index"));
-                            }
+    /**
+     * Builds the tables of contents, keywords and path resolver from the loaded bundles and publishes them in a new
+     * {@link HelpSnapshot}.
+     *
+     * @param application the servlet context.
+     * @param registry    the registry holding the jars of the bundles.
+     * @param loaded      the bundles in the order they were discovered.
+     * @param redirects   the permanent redirects.
+     * @param aliases     the temporary redirects.
+     * @param sequence    the patterns from {@code sequence.lst} or {@code null}.
+     */
+    static void publish(ServletContext application, BundleRegistry registry, Collection<LoadedBundle> loaded,
+                        Map<String, String> redirects, Map<String, String> aliases, List<Pattern> sequence) {
+        Map<String, String> bundles = new HashMap<String, String>();
+        Map<String, Toc> contents = new LinkedHashMap<String, Toc>();
+        List<IndexEntry> keywords = new ArrayList<IndexEntry>();
+        for (LoadedBundle bundle : loaded) {
+            if (bundle.getSymbolicName() != null) {
+                bundles.put(bundle.getSymbolicName(), bundle.getFileKey());
+            }
+            if (bundle.getToc() != null) {
+                contents.put(bundle.getKey(), bundle.getToc());
+                keywords.addAll(bundle.getKeywords());
+            }
+        }
+        TocRenderer tocRenderer = new TocRenderer(contents, sequence);
+        TopicIndex topics = new TopicIndex(tocRenderer.getSortedEntries());
+        Index keywordsIndex = new Index(keywords);
+        KeywordsRenderer keywordsRenderer = new KeywordsRenderer(keywordsIndex, topics);
+        SuggestionIndex suggestions = new SuggestionIndex(tocRenderer.getSortedEntries(), keywordsIndex);
+        PathResolver resolver = new PathResolver(registry.keySet(), bundles, redirects, aliases);
+        HelpSnapshot snapshot = getSnapshot(application).withBundles(registry, contents, sequence, tocRenderer,
+                topics, keywordsIndex, keywordsRenderer, suggestions, bundles, redirects, aliases, resolver);
+        // the search index changes go live together with the bundles, requests keep the searcher of their snapshot
+        SearcherManager searcherManager = snapshot.getSearcherManager();
+        IndexSearcher searcher = null;
+        if (searcherManager != null) {
+            try {
+                searcherManager.maybeRefresh();
+            } catch (IOException e) {
+                application.log("Could not refresh the search index due to " + e.getMessage(), e);
+            }
+            searcher = searcherManager.acquire();
+        }
+        setSnapshot(application, snapshot.withSearcher(searcher));
+    }
 
-                        }
-                        application.log(path + " successfully parsed and added as " + key);
-                        if (indexWriter != null) {
-                            application.log("Indexing content of " + path);
-                            Set<String> files = new HashSet<String>();
-                            Stack<Iterator<? extends TocEntry>> stack = new Stack<Iterator<? extends TocEntry>>();
-                            stack.push(Collections.singleton(toc).iterator());
-                            while (!stack.empty()) {
-                                Iterator<? extends TocEntry> cur = stack.pop();
-                                if (cur.hasNext()) {
-                                    TocEntry entry = cur.next();
-                                    stack.push(cur);
-                                    if (!entry.getChildren().isEmpty()) {
-                                        stack.push(entry.getChildren().iterator());
-                                    }
-                                    String file = entry.getHref();
-                                    if (file == null) {
-                                        continue;
-                                    }
-                                    int hashIndex = file.indexOf('#');
-                                    if (hashIndex != -1) {
-                                        file = file.substring(0, hashIndex);
-                                    }
-                                    if (files.contains(file)) {
-                                        // already indexed
-                                        // todo work out whether to just pull the section
-                                        continue;
-                                    }
-                                    Document document = new Document();
-                                    document.add(
-                                            new Field("title", entry.getLabel(), Field.Store.YES,
-                                                    Field.Index.ANALYZED));
-                                    document.add(new Field("href", key + "/" + entry.getHref(), Field.Store.YES,
-                                            Field.Index.NO));
-                                    JarEntry docEntry = jarFile.getJarEntry(file);
-                                    if (docEntry == null) {
-                                        // ignore missing file
-                                        continue;
-                                    }
-                                    InputStream inputStream = null;
-                                    try {
-                                        inputStream = jarFile.getInputStream(docEntry);
-                                        org.jsoup.nodes.Document docDoc = Jsoup.parse(IOUtils.toString(inputStream));
-                                        document.add(new Field("contents", docDoc.body().text(), Field.Store.NO,
-                                                Field.Index.ANALYZED));
-                                        indexWriter.addDocument(document);
-                                    } finally {
-                                        IOUtils.closeQuietly(inputStream);
-                                    }
-                                }
+    /**
+     * Reads the redirects and {@code sequence.lst} that sit next to the bundle jars.
+     *
+     * @param application the servlet context.
+     * @param paths       the resource paths in {@link #BUNDLE_PATH}.
+     * @param redirects   where to put the permanent redirects.
+     * @param aliases     where to put the temporary redirects.
+     * @return the patterns from {@code sequence.lst} or {@code null} if there is no {@code sequence.lst}.
+     */
+    static List<Pattern> readBundleSettings(ServletContext application, Set<String> paths,
+                                            Map<String, String> redirects, Map<String, String> aliases) {
+        List<Pattern> sequence = null;
+        for (String path : paths) {
+            if ("/WEB-INF/bundles/permanent-redirect.properties".equals(path)) {
+                readRedirects(application, path, "HTTP/301 (permanent)", redirects);
+            } else if ("/WEB-INF/bundles/temporary-redirect.properties".equals(path)) {
+                readRedirects(application, path, "HTTP/302 (temporary)", aliases);
+            } else if ("/WEB-INF/bundles/sequence.lst".equals(path)) {
+                sequence = new ArrayList<Pattern>();
+                try {
+                    InputStream stream = application.getResourceAsStream(path);
+                    try {
+                        for (String line: IOUtils.readLines(stream, "UTF-8")) {
+                            int hash = line.indexOf('#');
+                            if (hash != -1) line = line.substring(0, hash);
+                            if (line.startsWith("#") || StringUtils.isBlank(line)) {
+                                continue;
+                            }
+                            try {
+                                sequence.add(Pattern.compile(line));
+                            } catch (PatternSyntaxException e) {
+                                application.log("Ignoring malformed regex: " + line, e);
                             }
                         }
-                    } catch (XMLStreamException e) {
-                        application.log("Could not parse " + path + " due to " + e.getMessage(), e);
-                    } catch (MalformedURLException e) {
-                        application.log("Could not parse " + path + " due to " + e.getMessage(), e);
-                    } catch (IOException e) {
-                        application.log("Could not parse " + path + " due to " + e.getMessage(), e);
                     } finally {
-                        if (connection instanceof HttpURLConnection) {
-                            // should never be the case, but we should try to be sure
-                            ((HttpURLConnection) connection).disconnect();
-                        }
+                        IOUtils.closeQuietly(stream);
                     }
-                } else if ("/WEB-INF/bundles/permanent-redirect.properties".equals(path)) {
-                    final Properties properties = new Properties();
-                    try {
-                        InputStream stream = application.getResourceAsStream(path);
-                        try {
-                            properties.load(stream);
-                        } finally {
-                            IOUtils.closeQuietly(stream);
-                        }
-                    } catch (IOException e) {
-                        application.log("Cannot read permanent redirects.", e);
+                } catch (IOException e) {
+                    application.log("Cannot read sequence.lst.", e);
+                }
+            }
+        }
+        return sequence;
+    }
+
+    private static void readRedirects(ServletContext application, String path, String type,
+                                      Map<String, String> redirects) {
+        final Properties properties = new Properties();
+        try {
+            InputStream stream = application.getResourceAsStream(path);
+            try {
+                properties.load(stream);
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+        } catch (IOException e) {
+            application.log("Cannot read " + path + ".", e);
+        }
+        for (String key : properties.stringPropertyNames()) {
+            final String value = properties.getProperty(key);
+            if (StringUtils.isNotBlank(value)) {
+                final String src = StringUtils.removeEnd(StringUtils.removeStart(key, "/"), "/");
+                final String dst = StringUtils.removeEnd(StringUtils.removeStart(value, "/"), "/");
+                application.log(String.format("Adding %s from bundle %s to %s", type, src, dst));
+                redirects.put(src, dst);
+            }
+        }
+    }
+
+    /**
+     * Replaces the documents of a bundle in the search index, adding each topic as it is read so that only one topic
+     * at a time is held in memory. The writer is shared by the loader threads, which all index at the same time.
+     */
+    private static void indexBundle(ServletContext application, IndexWriter indexWriter, String path, String key,
+                                    String fileKey, String fingerprint, JarFile jarFile, Toc toc, boolean snippets) {
+        application.log("Indexing content of " + path);
+        try {
+            indexWriter.deleteDocuments(new Term("bundle", fileKey));
+            Set<String> files = new HashSet<String>();
+            Stack<Iterator<? extends TocEntry>> stack = new Stack<Iterator<? extends TocEntry>>();
+            stack.push(Collections.singleton(toc).iterator());
+            while (!stack.empty()) {
+                Iterator<? extends TocEntry> cur = stack.pop();
+                if (cur.hasNext()) {
+                    TocEntry entry = cur.next();
+                    stack.push(cur);
+                    if (!entry.getChildren().isEmpty()) {
+                        stack.push(entry.getChildren().iterator());
                     }
-                    for (String key : properties.stringPropertyNames()) {
-                        final String value = properties.getProperty(key);
-                        if (StringUtils.isNotBlank(value)) {
-                            final String src = StringUtils.removeEnd(StringUtils.removeStart(key, "/"), "/");
-                            final String dst = StringUtils.removeEnd(StringUtils.removeStart(value, "/"), "/");
-                            application
-                                    .log(String.format("Adding HTTP/301 (permanent) from bundle %s to %s", src, dst));
-                            redirects.put(src, dst);
-                        }
+                    String file = entry.getHref();
+                    if (file == null) {
+                        continue;
                     }
-                } else if ("/WEB-INF/bundles/temporary-redirect.properties".equals(path)) {
-                    final Properties properties = new Properties();
-                    try {
-                        InputStream stream = application.getResourceAsStream(path);
-                        try {
-                            properties.load(stream);
-                        } finally {
-                            IOUtils.closeQuietly(stream);
-                        }
-                    } catch (IOException e) {
-                        application.log("Cannot read temporary redirects.", e);
+                    int hashIndex = file.indexOf('#');
+                    if (hashIndex != -1) {
+                        file = file.substring(0, hashIndex);
                     }
-                    for (String key : properties.stringPropertyNames()) {
-                        final String value = properties.getProperty(key);
-                        if (StringUtils.isNotBlank(value)) {
-                            final String src = StringUtils.removeEnd(StringUtils.removeStart(key, "/"), "/");
-                            final String dst = StringUtils.removeEnd(StringUtils.removeStart(value, "/"), "/");
-                            application
-                                    .log(String.format("Adding HTTP/302 (temporary) from bundle %s to %s", src, dst));
-                            aliases.put(src, dst);
-                        }
+                    if (files.contains(file)) {
+                        // already indexed
+                        // todo work out whether to just pull the section
+                        continue;
+                    }
+                    Document document = new Document();
+                    document.add(
+                            new Field("title", entry.getLabel(), Field.Store.YES,
+                                    Field.Index.ANALYZED));
+                    document.add(new Field("href", key + "/" + entry.getHref(), Field.Store.YES,
+                            Field.Index.NO));
+                    document.add(new Field("bundle", fileKey, Field.Store.NO,
+                            Field.Index.NOT_ANALYZED_NO_NORMS));
+                    JarEntry docEntry = jarFile.getJarEntry(file);
+                    if (docEntry == null) {
+                        // ignore missing file
+                        continue;
                     }
-                } else if ("/WEB-INF/bundles/sequence.lst".equals(path)) {
-                    List<Pattern> sequence = new ArrayList<Pattern>();
+                    Reader reader = null;
                     try {
-                        InputStream stream = application.getResourceAsStream(path);
-                        try {
-                            for (String line: IOUtils.readLines(stream, "UTF-8")) {
-                                int hash = line.indexOf('#');
-                                if (hash != -1) line = line.substring(0, hash);
-                                if (line.startsWith("#") || StringUtils.isBlank(line)) {
-                                    continue;
-                                }
-                                try {
-                                    sequence.add(Pattern.compile(line));
-                                } catch (PatternSyntaxException e) {
-                                    application.log("Ignoring malformed regex: " + line, e);
-                                }
-                            }
-                        } finally {
-                            IOUtils.closeQuietly(stream);
+                        reader = new InputStreamReader(jarFile.getInputStream(docEntry), "UTF-8");
+                        String text = BodyExtractor.extractText(reader);
+                        document.add(new Field("contents", text, Field.Store.NO, Field.Index.ANALYZED));
+                        if (snippets) {
+                            // compressed, the snippets only need it for the hits on a page
+                            document.add(new Field(Snippets.FIELD, CompressionTools.compressString(text)));
                         }
-                    } catch (IOException e) {
-                        application.log("Cannot read sequence.lst.", e);
+                        indexWriter.addDocument(document);
+                    } finally {
+                        IOUtils.closeQuietly(reader);
                     }
-                    application.setAttribute("sequence", Collections.unmodifiableList(sequence));
                 }
             }
-        }
-        if (indexWriter != null) {
-            try {
-                indexWriter.close();
-            } catch (IOException e) {
-                application.log("Cannot create search index. Search will be unavailable.", e);
+            if (fingerprint != null) {
+                // only record the fingerprint once all the documents are in
+                Document marker = new Document();
+                marker.add(new Field("bundle", fileKey, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+                marker.add(new Field("fingerprint", fingerprint, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+                indexWriter.addDocument(marker);
             }
-            application.setAttribute("index", index);
+        } catch (IOException e) {
+            application.log("Could not index " + path + " due to " + e.getMessage(), e);
         }
+    }
 
-        application.setAttribute("toc", Collections.unmodifiableMap(contents));
-        application.setAttribute("keywords", new Index(keywords));
-        application.setAttribute("bundles", Collections.unmodifiableMap(bundles));
-        application.setAttribute("redirects", Collections.unmodifiableMap(redirects));
-        application.setAttribute("aliases", Collections.unmodifiableMap(aliases));
-        application.setAttribute("analyzer", analyzer);
-        application.setAttribute("contentsQueryParser", new QueryParser(LUCENE_VERSON, "contents", analyzer));
+    private Map<String, String> loadContextParams(ServletContext application) {
+        Map<String, String> params = new HashMap<String, String>();
         Properties properties = new Properties();
         try {
             // start with the global defaults
@@ -342,14 +450,14 @@ public class ServletContextListenerImpl implements ServletContextListener {
         for (String key : properties.stringPropertyNames()) {
             final String value = properties.getProperty(key);
             if (StringUtils.isBlank(value)) {
-                application.removeAttribute("context-param." + key);
+                params.remove(key);
             } else {
-                application.setAttribute("context-param." + key, value);
+                params.put(key, value);
             }
         }
         // now come the actual values from web.xml
         for (String name: Collections.list((Enumeration<String>)application.getInitParameterNames())) {
-            application.setAttribute("context-param." + name, application.getInitParameter(name));
+            params.put(name, application.getInitParameter(name));
         }
         properties = new Properties();
         try {
@@ -368,63 +476,422 @@ public class ServletContextListenerImpl implements ServletContextListener {
         for (String key : properties.stringPropertyNames()) {
             final String value = properties.getProperty(key);
             if (StringUtils.isBlank(value)) {
-                application.removeAttribute("context-param." + key);
+                params.remove(key);
             } else {
-                application.setAttribute("context-param." + key, value);
+                params.put(key, value);
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Opens the directory holding the search index. When the {@code search.index.directory} context-param is set
+     * the index lives on disk (relative paths are resolved against the container temp dir) and survives restarts,
+     * otherwise it is built in memory.
+     */
+    private static Directory openDirectory(ServletContext application) {
+        String location = getInitParameter(application, "search.index.directory");
+        if (StringUtils.isNotBlank(location)) {
+            File dir = new File(location.trim());
+            if (!dir.isAbsolute()) {
+                File tempDir = (File) application.getAttribute("javax.servlet.context.tempdir");
+                if (tempDir != null) {
+                    dir = new File(tempDir, location.trim());
+                }
+            }
+            try {
+                application.log("Using persistent search index at " + dir);
+                return FSDirectory.open(dir);
+            } catch (IOException e) {
+                application.log("Cannot open search index at " + dir + ", falling back to an in-memory index.", e);
+            }
+        }
+        return new RAMDirectory();
+    }
+
+    /**
+     * Collects the fingerprints and bundle names of a search index written by a previous start.
+     *
+     * @return {@code true} if the existing index can be appended to, {@code false} if it needs to be recreated.
+     */
+    private static boolean readIndexedBundles(ServletContext application, Directory index,
+                                              Set<String> fingerprints, Set<String> bundles) {
+        try {
+            if (!IndexReader.indexExists(index)) {
+                return false;
+            }
+            IndexReader reader = IndexReader.open(index);
+            try {
+                readTerms(reader, "bundle", bundles);
+                Set<String> candidates = new HashSet<String>();
+                readTerms(reader, "fingerprint", candidates);
+                for (String fingerprint : candidates) {
+                    // terms of deleted documents hang around until the segments are merged
+                    TermDocs termDocs = reader.termDocs(new Term("fingerprint", fingerprint));
+                    try {
+                        if (termDocs.next()) {
+                            fingerprints.add(fingerprint);
+                        }
+                    } finally {
+                        termDocs.close();
+                    }
+                }
+            } finally {
+                reader.close();
             }
+            return true;
+        } catch (IOException e) {
+            application.log("Cannot read existing search index, rebuilding it.", e);
+            fingerprints.clear();
+            bundles.clear();
+            return false;
         }
     }
 
-    @SuppressWarnings("unchecked")
-    public static Map<String, Toc> getTablesOfContents(ServletContext application) {
-        return (Map<String, Toc>) application.getAttribute("toc");
+    private static void readTerms(IndexReader reader, String field, Set<String> values) throws IOException {
+        TermEnum terms = reader.terms(new Term(field, ""));
+        try {
+            do {
+                Term term = terms.term();
+                if (term == null || !field.equals(term.field())) {
+                    break;
+                }
+                values.add(term.text());
+            } while (terms.next());
+        } finally {
+            terms.close();
+        }
     }
 
-    @SuppressWarnings("unchecked")
-    public static Map<String, String> getBundles(ServletContext application) {
-        return (Map<String, String>) application.getAttribute("bundles");
+    /**
+     * Returns the number of threads to parse and index bundles with. A value of {@code 1} gives the old sequential
+     * behaviour, while a missing or non-positive value uses one thread per available processor.
+     */
+    private static int getLoaderThreads(ServletContext application) {
+        String threads = getInitParameter(application, "bundles.loader.threads");
+        if (StringUtils.isNotBlank(threads)) {
+            try {
+                int value = Integer.parseInt(threads.trim());
+                if (value > 0) {
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+                application.log("Ignoring malformed bundles.loader.threads: " + threads);
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
     }
 
-    @SuppressWarnings("unchecked")
-    public static Index getKeywordsIndex(ServletContext application) {
-        return (Index) application.getAttribute("keywords");
+    /**
+     * Parses a single bundle jar and, unless the search index already has them, adds its topics to the search index.
+     * Returns {@code null} if the path is not a jar file.
+     *
+     * @param indexWriter         the writer of the search index or {@code null} if search is unavailable.
+     * @param indexedFingerprints the fingerprints of the bundles that the search index already has.
+     */
+    static LoadedBundle loadBundle(ServletContext application, BundleRegistry registry, String path,
+                                   IndexWriter indexWriter, Set<String> indexedFingerprints) {
+        String key = path.substring("/WEB-INF/bundles/".length(), path.lastIndexOf(".jar"));
+        String fileKey = key;
+        String symbolicName = null;
+        String fingerprint = null;
+        boolean snippets = Boolean.parseBoolean(getInitParameter(application, "search.snippets"));
+        application.log("Parsing " + path);
+        try {
+            // an in-memory index starts empty every time, so there is nothing a fingerprint could be matched with
+            if (indexWriter != null
+                    && StringUtils.isNotBlank(getInitParameter(application, "search.index.directory"))) {
+                fingerprint = BundleFingerprint.compute(application, path, snippets);
+            }
+            JarFile jarFile = registry.open(application, fileKey, path);
+            if (jarFile == null) {
+                application.log(path + " is not a jar file, ignoring");
+                return null;
+            }
+            Manifest manifest = jarFile.getManifest();
+            if (manifest != null) {
+                symbolicName = manifest.getMainAttributes().getValue("Bundle-SymbolicName");
+                if (symbolicName != null) {
+                    int i = symbolicName.indexOf(';');
+                    if (i != -1) {
+                        symbolicName = symbolicName.substring(0, i);
+                    }
+                    key = symbolicName;
+                }
+            }
+
+            JarEntry pluginEntry = jarFile.getJarEntry("plugin.xml");
+            if (pluginEntry == null) {
+                application.log(path + " does not contain a plugin.xml file, ignoring");
+                return new LoadedBundle(path, fileKey, symbolicName, fingerprint, null, null, false);
+            }
+            Plugin plugin = Plugin.read(jarFile.getInputStream(pluginEntry));
+
+            Extension tocExtension = plugin.getExtension("org.eclipse.help.toc");
+            if (tocExtension == null || tocExtension.getFile("toc") == null) {
+                application.log(path + " does not contain a 'org.eclipse.help.toc' extension, ignoring");
+                return new LoadedBundle(path, fileKey, symbolicName, fingerprint, null, null, false);
+            }
+            JarEntry tocEntry = jarFile.getJarEntry(tocExtension.getFile("toc"));
+            if (tocEntry == null) {
+                application.log(path + " is missing the referenced toc: " + tocExtension.getFile("toc")
+                        + ", ignoring");
+                return new LoadedBundle(path, fileKey, symbolicName, fingerprint, null, null, false);
+            }
+            Toc toc;
+            try {
+                toc = Toc.read(jarFile.getInputStream(tocEntry));
+            } catch (IllegalStateException e) {
+                application.log("Could not parse " + path + " due to " + e.getMessage(), e);
+                return new LoadedBundle(path, fileKey, symbolicName, fingerprint, null, null, false);
+            }
+
+            List<IndexEntry> keywords = null;
+            Extension indexExtension = plugin.getExtension("org.eclipse.help.index");
+            if (indexExtension != null && indexExtension.getFile("index") != null) {
+                JarEntry indexEntry = jarFile.getJarEntry(indexExtension.getFile("index"));
+                if (indexEntry != null) {
+                    try {
+                        keywords = Index.read(key, jarFile.getInputStream(indexEntry)).getChildren();
+                    } catch (IllegalStateException e) {
+                        application.log("Could not parse " + path + " due to " + e.getMessage(), e);
+                    }
+                } else {
+                    application.log(path + " is missing the referenced index: " + indexExtension
+                            .getFile("index"));
+                }
+
+            }
+            application.log(path + " successfully parsed and added as " + key);
+            boolean upToDate = fingerprint != null && indexedFingerprints.contains(fingerprint);
+            if (indexWriter != null && !upToDate) {
+                indexBundle(application, indexWriter, path, key, fileKey, fingerprint, jarFile, toc, snippets);
+            }
+            return new LoadedBundle(path, fileKey, symbolicName, fingerprint, toc, keywords, upToDate);
+        } catch (XMLStreamException e) {
+            application.log("Could not parse " + path + " due to " + e.getMessage(), e);
+        } catch (IOException e) {
+            application.log("Could not parse " + path + " due to " + e.getMessage(), e);
+        }
+        return new LoadedBundle(path, fileKey, symbolicName, fingerprint, null, null, false);
     }
 
-    @SuppressWarnings("unchecked")
-    public static Directory getDirectory(ServletContext application) {
-        return (Directory) application.getAttribute("index");
+    /**
+     * Returns the current snapshot. Callers should hold on to the snapshot rather than call this repeatedly, so that
+     * they see a consistent view if the bundles are reloaded.
+     */
+    public static HelpSnapshot getSnapshot(ServletContext application) {
+        return ((SnapshotReference) application.getAttribute(SNAPSHOT)).current;
     }
 
-    @SuppressWarnings("unchecked")
-    public static Analyzer getAnalyzer(ServletContext application) {
-        return (Analyzer) application.getAttribute("analyzer");
+    /**
+     * Returns the snapshot that a request works with. The current snapshot is pinned to the request the first time,
+     * so that every part of a page is rendered from the same snapshot even if the bundles are reloaded meanwhile.
+     * The jars and the searcher of a pinned snapshot stay open until the request has completed.
+     */
+    public static HelpSnapshot getSnapshot(ServletRequest request, ServletContext application) {
+        HelpSnapshot snapshot = (HelpSnapshot) request.getAttribute(SNAPSHOT);
+        if (snapshot == null) {
+            SnapshotReference reference = (SnapshotReference) application.getAttribute(SNAPSHOT);
+            do {
+                // a reload can release the snapshot between reading and pinning it, in which case take the new one
+                snapshot = reference.current;
+            } while (!snapshot.pin());
+            request.setAttribute(SNAPSHOT, snapshot);
+        }
+        return snapshot;
     }
-    
-    @SuppressWarnings("unchecked")
-    public static List<Pattern> getSequence(ServletContext application) {
-        return (List<Pattern>) application.getAttribute("sequence");
+
+    static void setSnapshot(ServletContext application, HelpSnapshot snapshot) {
+        SnapshotReference reference = (SnapshotReference) application.getAttribute(SNAPSHOT);
+        HelpSnapshot previous;
+        synchronized (reference) {
+            previous = reference.current;
+            reference.current = snapshot;
+            reference.retired.add(new HelpSnapshot[]{previous, snapshot});
+        }
+        release(application, previous);
     }
-    
-    public static int getSequenceOrder(ServletContext application, String key) {
-        int i = 0;
-        for (Pattern p : getSequence(application)) {
-            if (p.matcher(key).matches()) return i;
-            i++;
-        }
-        return i;
+
+    /**
+     * Unregisters a user of a snapshot. Once a replaced snapshot has no users left, its searcher and the jars that
+     * its successor does not share are closed. Snapshots are disposed of in the order they were replaced, as a jar
+     * can be shared by a snapshot and its successor but not by the snapshot after that.
+     */
+    private static void release(ServletContext application, HelpSnapshot snapshot) {
+        if (!snapshot.unpin()) {
+            return;
+        }
+        SnapshotReference reference = (SnapshotReference) application.getAttribute(SNAPSHOT);
+        synchronized (reference) {
+            while (!reference.retired.isEmpty() && reference.retired.getFirst()[0].isReleased()) {
+                HelpSnapshot[] retired = reference.retired.removeFirst();
+                dispose(application, retired[0], retired[1]);
+            }
+        }
     }
-    
-    @SuppressWarnings("unchecked")
+
+    /**
+     * Closes the searcher of a snapshot and the jars that are not shared with its successor.
+     *
+     * @param application the servlet context.
+     * @param snapshot    the snapshot.
+     * @param successor   the snapshot that replaced it, or {@code null} to close all the jars.
+     */
+    private static void dispose(ServletContext application, HelpSnapshot snapshot, HelpSnapshot successor) {
+        if (snapshot.getSearcher() != null) {
+            try {
+                snapshot.getSearcherManager().release(snapshot.getSearcher());
+            } catch (IOException e) {
+                application.log("Could not close search index searcher", e);
+            }
+        }
+        BundleRegistry registry = snapshot.getBundleRegistry();
+        if (registry == null) {
+            return;
+        }
+        if (successor == null) {
+            registry.close();
+        } else if (successor.getBundleRegistry() != null && successor.getBundleRegistry() != registry) {
+            Set<String> unused = registry.closeUnused(successor.getBundleRegistry());
+            if (snapshot.getExpandedEntryCache() != null) {
+                snapshot.getExpandedEntryCache().remove(unused);
+            }
+        }
+    }
+
+    public void requestInitialized(ServletRequestEvent sre) {
+    }
+
+    public void requestDestroyed(ServletRequestEvent sre) {
+        HelpSnapshot snapshot = (HelpSnapshot) sre.getServletRequest().getAttribute(SNAPSHOT);
+        if (snapshot != null) {
+            sre.getServletRequest().removeAttribute(SNAPSHOT);
+            release(sre.getServletContext(), snapshot);
+        }
+    }
+
     public static String getInitParameter(ServletContext application, String name) {
-        return (String) application.getAttribute("context-param." + name);
+        return getSnapshot(application).getInitParameter(name);
     }
 
-    @SuppressWarnings("unchecked")
-    public static QueryParser getContentsQueryParser(ServletContext application) {
-        return (QueryParser) application.getAttribute("contentsQueryParser");
+    /**
+     * Returns a numeric context-param.
+     *
+     * @param application  the servlet context.
+     * @param name         the name of the context-param.
+     * @param defaultValue the value to use when the context-param is missing or malformed.
+     * @return the value.
+     */
+    public static long getLongInitParameter(ServletContext application, String name, long defaultValue) {
+        String value = getInitParameter(application, name);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                application.log("Ignoring malformed " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Holds the current snapshot. It is published once as a context attribute, after which reading the snapshot is
+     * a single volatile read.
+     */
+    private static final class SnapshotReference {
+        private volatile HelpSnapshot current;
+
+        /**
+         * The replaced snapshots that are still to be disposed of, oldest first, each with its successor.
+         */
+        private final LinkedList<HelpSnapshot[]> retired = new LinkedList<HelpSnapshot[]>();
+
+        private SnapshotReference(HelpSnapshot current) {
+            this.current = current;
+        }
+    }
+
+    private static class BundleLoader implements Callable<LoadedBundle> {
+        private final ServletContext application;
+        private final BundleRegistry registry;
+        private final String path;
+        private final IndexWriter indexWriter;
+        private final Set<String> indexedFingerprints;
+
+        public BundleLoader(ServletContext application, BundleRegistry registry, String path,
+                            IndexWriter indexWriter, Set<String> indexedFingerprints) {
+            this.application = application;
+            this.registry = registry;
+            this.path = path;
+            this.indexWriter = indexWriter;
+            this.indexedFingerprints = indexedFingerprints;
+        }
+
+        public LoadedBundle call() throws Exception {
+            return loadBundle(application, registry, path, indexWriter, indexedFingerprints);
+        }
+    }
+
+    private static class LoaderThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "tobar-segais-bundle-loader-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 
     public void contextDestroyed(ServletContextEvent sce) {
-        //To change body of implemented methods use File | Settings | File Templates.
+        ServletContext application = sce.getServletContext();
+        BundleWatcher watcher = (BundleWatcher) application.getAttribute("bundleWatcher");
+        if (watcher != null) {
+            watcher.close();
+        }
+        CacheStatisticsLogger statistics = (CacheStatisticsLogger) application.getAttribute("cacheStatisticsLogger");
+        if (statistics != null) {
+            statistics.close();
+        }
+        SnapshotReference reference = (SnapshotReference) application.getAttribute(SNAPSHOT);
+        HelpSnapshot snapshot;
+        synchronized (reference) {
+            // requests still running at this point are not waited for
+            for (HelpSnapshot[] retired : reference.retired) {
+                dispose(application, retired[0], retired[1]);
+            }
+            reference.retired.clear();
+            snapshot = reference.current;
+            dispose(application, snapshot, null);
+        }
+        if (snapshot.getSearcherManager() != null) {
+            try {
+                snapshot.getSearcherManager().close();
+            } catch (IOException e) {
+                application.log("Could not close search index searcher", e);
+            }
+        }
+        if (snapshot.getDirectory() != null) {
+            try {
+                snapshot.getDirectory().close();
+            } catch (IOException e) {
+                application.log("Could not close search index", e);
+            }
+        }
+        if (snapshot.getContentCache() != null) {
+            application.log(snapshot.getContentCache().toString());
+        }
+        if (snapshot.getCompressedContentCache() != null) {
+            application.log(snapshot.getCompressedContentCache().toString());
+        }
+        if (snapshot.getPageCache() != null) {
+            application.log(snapshot.getPageCache().toString());
+        }
+        if (snapshot.getSearchResultCache() != null) {
+            application.log(snapshot.getSearchResultCache().toString());
+        }
+        if (snapshot.getExpandedEntryCache() != null) {
+            snapshot.getExpandedEntryCache().close();
+        }
     }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds the snippets shown under search results from the body text stored in the search index, so that the topic
+ * never has to be read from its jar again. The text is run through the analyzer the index was written with to find
+ * the query terms, and the snippet is the stretch of text holding the most of them.
+ */
+public final class Snippets {
+
+    /**
+     * The field holding the compressed body text.
+     */
+    public static final String FIELD = "body";
+
+    /**
+     * The length of a snippet in characters.
+     */
+    private static final int LENGTH = 200;
+
+    /**
+     * How far before the first term in a snippet the snippet starts.
+     */
+    private static final int LEAD = 40;
+
+    /**
+     * The most terms looked at per document, which bounds the time a long topic can take.
+     */
+    private static final int MAX_MATCHES = 256;
+
+    private Snippets() {
+    }
+
+    /**
+     * Returns the terms of a query that can be found in the {@code contents} field. Prefix and wildcard queries only
+     * contribute their terms when they rewrite to a small enough boolean query.
+     *
+     * @param searcher the searcher the query is run with.
+     * @param query    the query.
+     * @return the terms.
+     * @throws IOException if the search index could not be read.
+     */
+    public static Set<String> terms(IndexSearcher searcher, Query query) throws IOException {
+        Set<Term> terms = new HashSet<Term>();
+        try {
+            searcher.rewrite(query).extractTerms(terms);
+        } catch (UnsupportedOperationException e) {
+            // some rewritten queries do not know their terms
+        }
+        Set<String> result = new HashSet<String>();
+        for (Term term : terms) {
+            if ("contents".equals(term.field())) {
+                result.add(term.text());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the snippet of a text as HTML, with the terms marked up as {@code <strong>}.
+     *
+     * @param analyzer the analyzer the search index was written with.
+     * @param terms    the terms from {@link #terms}.
+     * @param text     the body text.
+     * @return the snippet.
+     * @throws IOException if the text could not be analyzed.
+     */
+    public static String create(Analyzer analyzer, Set<String> terms, String text) throws IOException {
+        List<int[]> matches = new ArrayList<int[]>();
+        if (!terms.isEmpty()) {
+            TokenStream stream = analyzer.reusableTokenStream("contents", new StringReader(text));
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+            stream.reset();
+            while (matches.size() < MAX_MATCHES && stream.incrementToken()) {
+                if (terms.contains(term.toString())) {
+                    matches.add(new int[]{offset.startOffset(), offset.endOffset()});
+                }
+            }
+            stream.end();
+            stream.close();
+        }
+        // the window starting at a match that holds the most matches
+        int best = -1;
+        int bestCount = 0;
+        for (int i = 0, j = 0; i < matches.size(); i++) {
+            j = Math.max(i, j);
+            while (j < matches.size() && matches.get(j)[1] <= matches.get(i)[0] + LENGTH - LEAD) {
+                j++;
+            }
+            if (j - i > bestCount) {
+                best = i;
+                bestCount = j - i;
+            }
+        }
+        int start = best == -1 ? 0 : Math.max(0, matches.get(best)[0] - LEAD);
+        if (start > 0) {
+            // start on a word
+            int space = text.indexOf(' ', start);
+            start = space == -1 || space >= matches.get(best)[0] ? start : space + 1;
+        }
+        int end = Math.min(text.length(), start + LENGTH);
+        if (end < text.length()) {
+            int space = text.lastIndexOf(' ', end);
+            end = space <= start ? end : space;
+        }
+        StringBuilder snippet = new StringBuilder(end - start + 32);
+        if (start > 0) {
+            snippet.append("&hellip;");
+        }
+        int pos = start;
+        for (int i = Math.max(0, best); i < matches.size() && matches.get(i)[1] <= end; i++) {
+            int[] match = matches.get(i);
+            if (match[0] < pos) {
+                continue;
+            }
+            snippet.append(StringEscapeUtils.escapeHtml4(text.substring(pos, match[0])));
+            snippet.append("<strong>");
+            snippet.append(StringEscapeUtils.escapeHtml4(text.substring(match[0], match[1])));
+            snippet.append("</strong>");
+            pos = match[1];
+        }
+        snippet.append(StringEscapeUtils.escapeHtml4(text.substring(pos, end)));
+        if (end < text.length()) {
+            snippet.append("&hellip;");
+        }
+        return snippet.toString();
+    }
+}
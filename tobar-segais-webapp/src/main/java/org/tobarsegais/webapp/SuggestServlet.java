@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Serves the suggestions for what has been typed in the search box so far as JSON, i.e.
+ * <pre>
+ * [{"label":"Proxy settings","href":"/docs/bundle/proxy.html"},{"label":"proxies","keyword":true}, ...]
+ * </pre>
+ * Suggestions without an {@code href} are keywords that should be searched for.
+ */
+public class SuggestServlet extends HttpServlet {
+
+    /**
+     * The number of suggestions when the request does not say.
+     */
+    private static final int DEFAULT_LIMIT = 10;
+
+    /**
+     * The largest number of suggestions a request can ask for.
+     */
+    private static final int MAX_LIMIT = 50;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        HelpSnapshot snapshot = ServletContextListenerImpl.getSnapshot(req, getServletContext());
+        SuggestionIndex index = snapshot.getSuggestionIndex();
+        if (index == null) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        int limit = Math.min(MAX_LIMIT, NumberUtils.toInt(req.getParameter("limit"), DEFAULT_LIMIT));
+        List<SuggestionIndex.Suggestion> suggestions = index.suggest(req.getParameter("query"), limit);
+        StringBuilder json = new StringBuilder();
+        json.append('[');
+        boolean first = true;
+        for (SuggestionIndex.Suggestion suggestion : suggestions) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('{');
+            Json.appendProperty(json, "label", suggestion.getLabel());
+            if (suggestion.getHref() != null) {
+                json.append(',');
+                Json.appendProperty(json, "href", req.getContextPath() + "/docs/" + suggestion.getHref());
+            }
+            if (suggestion.isKeyword()) {
+                json.append(',');
+                Json.appendString(json, "keyword").append(":true");
+            }
+            json.append('}');
+        }
+        json.append(']');
+        byte[] bytes = json.toString().getBytes("UTF-8");
+        resp.setContentType(Json.CONTENT_TYPE);
+        resp.setContentLength(bytes.length);
+        // suggestions change whenever the bundles do, so only the default applies rather than the application/* one
+        String cacheControl = snapshot.getCacheControl(null);
+        if (cacheControl != null) {
+            resp.setHeader("Cache-Control", cacheControl);
+        }
+        OutputStream out = resp.getOutputStream();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.tobarsegais.webapp.data.Index;
+import org.tobarsegais.webapp.data.IndexEntry;
+import org.tobarsegais.webapp.data.Toc;
+import org.tobarsegais.webapp.data.TocEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Suggests topic titles and keywords as the user types in the search box, without going near the search index.
+ * Every word of every title and keyword is a key, so {@code prox} finds both "Proxy settings" and "Using a proxy".
+ * The keys are held as a sorted array of (suggestion, offset) pairs into the case folded labels, so a lookup is a
+ * binary search for the first key starting with the prefix followed by a short scan. Suggestions where the whole
+ * label starts with the prefix come before those where a later word does.
+ */
+public class SuggestionIndex {
+
+    /**
+     * The most keys looked at per lookup, which bounds the time a very short prefix can take.
+     */
+    private static final int MAX_SCAN = 1024;
+
+    private final String[] labels;
+
+    /**
+     * The hrefs relative to {@code /docs/}, {@code null} for keywords that should be searched for instead.
+     */
+    private final String[] hrefs;
+
+    private final boolean[] keywords;
+
+    private final String[] folded;
+
+    /**
+     * The keys in order, each the index of the suggestion in the high int and the offset of the word in the low int.
+     */
+    private final long[] keys;
+
+    /**
+     * Creates the index.
+     *
+     * @param contents the tables of contents keyed by bundle, in the order they appear in the table of contents.
+     * @param index    the merged keyword index.
+     */
+    public SuggestionIndex(List<Map.Entry<String, Toc>> contents, Index index) {
+        // the first suggestion with a label wins, so topics win over keywords
+        Map<String, Suggestion> suggestions = new LinkedHashMap<String, Suggestion>();
+        for (Map.Entry<String, Toc> entry : contents) {
+            collect(entry.getKey(), entry.getValue(), suggestions);
+        }
+        if (index != null) {
+            for (IndexEntry entry : index.getEntries().values()) {
+                String keyword = entry.getKeyword();
+                if (keyword != null && !suggestions.containsKey(fold(keyword))) {
+                    // a keyword with a single topic can go straight to it, otherwise search for it
+                    String href = entry.getTopics().size() == 1 && entry.getSubEntries().isEmpty()
+                            && entry.getTopics().get(0).getHref() != null
+                            ? entry.getTopics().get(0).getBundle() + "/" + entry.getTopics().get(0).getHref()
+                            : null;
+                    suggestions.put(fold(keyword), new Suggestion(keyword, href, true));
+                }
+            }
+        }
+        int count = suggestions.size();
+        labels = new String[count];
+        hrefs = new String[count];
+        keywords = new boolean[count];
+        folded = new String[count];
+        List<Long> keys = new ArrayList<Long>();
+        int i = 0;
+        for (Map.Entry<String, Suggestion> entry : suggestions.entrySet()) {
+            Suggestion suggestion = entry.getValue();
+            labels[i] = suggestion.getLabel();
+            hrefs[i] = suggestion.getHref();
+            keywords[i] = suggestion.isKeyword();
+            String label = entry.getKey();
+            folded[i] = label;
+            for (int offset = 0; offset < label.length(); offset++) {
+                if (Character.isLetterOrDigit(label.charAt(offset))
+                        && (offset == 0 || !Character.isLetterOrDigit(label.charAt(offset - 1)))) {
+                    keys.add(((long) i << 32) | offset);
+                }
+            }
+            i++;
+        }
+        Collections.sort(keys, new Comparator<Long>() {
+            public int compare(Long o1, Long o2) {
+                String s1 = folded[(int) (o1 >>> 32)];
+                String s2 = folded[(int) (o2 >>> 32)];
+                int i1 = (int) o1.longValue();
+                int i2 = (int) o2.longValue();
+                while (i1 < s1.length() && i2 < s2.length()) {
+                    char c1 = s1.charAt(i1++);
+                    char c2 = s2.charAt(i2++);
+                    if (c1 != c2) {
+                        return c1 - c2;
+                    }
+                }
+                return (s1.length() - i1) - (s2.length() - i2);
+            }
+        });
+        this.keys = new long[keys.size()];
+        for (int j = 0; j < this.keys.length; j++) {
+            this.keys[j] = keys.get(j);
+        }
+    }
+
+    private static void collect(String bundle, TocEntry entry, Map<String, Suggestion> suggestions) {
+        if (entry.getHref() != null && entry.getLabel() != null) {
+            String label = fold(entry.getLabel());
+            if (label.trim().length() > 0 && !suggestions.containsKey(label)) {
+                suggestions.put(label, new Suggestion(entry.getLabel(), bundle + "/" + entry.getHref(), false));
+            }
+        }
+        for (TocEntry child : entry.getChildren()) {
+            collect(bundle, child, suggestions);
+        }
+    }
+
+    /**
+     * Lower cases one character at a time, so that the offsets into the folded label are offsets into the label.
+     */
+    private static String fold(String label) {
+        char[] chars = label.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Compares the key with the prefix, looking no further than the length of the prefix.
+     *
+     * @return negative if the key sorts before the prefix, zero if the key starts with the prefix, otherwise
+     *         positive.
+     */
+    private int compare(long key, String prefix) {
+        String label = folded[(int) (key >>> 32)];
+        int offset = (int) key;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (offset + i >= label.length()) {
+                return -1;
+            }
+            char c = label.charAt(offset + i);
+            char p = prefix.charAt(i);
+            if (c != p) {
+                return c - p;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the suggestions for what the user has typed so far.
+     *
+     * @param prefix what the user has typed so far.
+     * @param limit  the maximum number of suggestions.
+     * @return the suggestions, best first.
+     */
+    public List<Suggestion> suggest(String prefix, int limit) {
+        if (prefix == null) {
+            return Collections.emptyList();
+        }
+        prefix = fold(prefix.trim());
+        if (prefix.length() == 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(keys[mid], prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        // a label can have the same word more than once, in which case matching at the start of the label wins
+        Map<Integer, Boolean> found = new LinkedHashMap<Integer, Boolean>();
+        int startCount = 0;
+        for (int i = low; i < keys.length && i < low + MAX_SCAN && startCount < limit; i++) {
+            long key = keys[i];
+            if (compare(key, prefix) != 0) {
+                break;
+            }
+            int index = (int) (key >>> 32);
+            boolean start = (int) key == 0;
+            Boolean previous = found.get(index);
+            if (previous == null || (start && !previous)) {
+                // re-inserted so that the starts stay in the order of their keys
+                found.remove(index);
+                found.put(index, start);
+                if (start) {
+                    startCount++;
+                }
+            }
+        }
+        List<Suggestion> starts = new ArrayList<Suggestion>();
+        List<Suggestion> words = new ArrayList<Suggestion>();
+        for (Map.Entry<Integer, Boolean> entry : found.entrySet()) {
+            int index = entry.getKey();
+            if (entry.getValue()) {
+                starts.add(new Suggestion(labels[index], hrefs[index], keywords[index]));
+            } else if (words.size() < limit) {
+                words.add(new Suggestion(labels[index], hrefs[index], keywords[index]));
+            }
+        }
+        List<Suggestion> result = new ArrayList<Suggestion>(starts);
+        for (Suggestion suggestion : words) {
+            if (result.size() >= limit) {
+                break;
+            }
+            result.add(suggestion);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of suggestions.
+     */
+    public int size() {
+        return labels.length;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("SuggestionIndex");
+        sb.append("{suggestions=").append(labels.length);
+        sb.append(", keys=").append(keys.length);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * A topic title or keyword.
+     */
+    public static class Suggestion {
+        private final String label;
+        private final String href;
+        private final boolean keyword;
+
+        public Suggestion(String label, String href, boolean keyword) {
+            this.label = label;
+            this.href = href;
+            this.keyword = keyword;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * Returns the path of the topic relative to {@code /docs/}, or {@code null} if the label should be searched
+         * for instead.
+         */
+        public String getHref() {
+            return href;
+        }
+
+        public boolean isKeyword() {
+            return keyword;
+        }
+    }
+}
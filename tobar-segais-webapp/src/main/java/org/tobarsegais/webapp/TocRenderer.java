@@ -0,0 +1,250 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.tobarsegais.webapp.data.Toc;
+import org.tobarsegais.webapp.data.TocEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Renders the table of contents tree. Only the bundles and the branches leading to the current topic are rendered,
+ * every other branch is left for the browser to fetch from {@link TocServlet} when it gets expanded. The markup of
+ * the collapsed bundles only changes when the bundles change, so it is rendered once per context path.
+ */
+public class TocRenderer {
+
+    private final List<Map.Entry<String, Toc>> sortedEntries;
+
+    /**
+     * The node ids of every topic keyed by bundle and then by href without the fragment.
+     */
+    private final Map<String, Map<String, String>> nodeIds;
+
+    private final ConcurrentMap<String, String[]> rendered = new ConcurrentHashMap<String, String[]>();
+
+    /**
+     * Creates the renderer.
+     *
+     * @param contents the tables of contents keyed by bundle.
+     * @param sequence the patterns from {@code sequence.lst} or {@code null}.
+     */
+    public TocRenderer(Map<String, Toc> contents, List<Pattern> sequence) {
+        final Map<String, Integer> order = new HashMap<String, Integer>();
+        for (String key : contents.keySet()) {
+            order.put(key, sequenceOrder(sequence, key));
+        }
+        List<Map.Entry<String, Toc>> sortedEntries = new ArrayList<Map.Entry<String, Toc>>(contents.entrySet());
+        Collections.sort(sortedEntries, new Comparator<Map.Entry<String, Toc>>() {
+            public int compare(Map.Entry<String, Toc> o1, Map.Entry<String, Toc> o2) {
+                int i1 = order.get(o1.getKey());
+                int i2 = order.get(o2.getKey());
+                if (i1 != i2) {
+                    return (i1 < i2) ? -1 : 1;
+                }
+                return o1.getValue().getLabel().compareTo(o2.getValue().getLabel());
+            }
+        });
+        this.sortedEntries = Collections.unmodifiableList(sortedEntries);
+        Map<String, Map<String, String>> nodeIds = new HashMap<String, Map<String, String>>();
+        for (Map.Entry<String, Toc> entry : contents.entrySet()) {
+            Map<String, String> ids = new HashMap<String, String>();
+            collectNodeIds(entry.getValue(), "", ids);
+            nodeIds.put(entry.getKey(), ids);
+        }
+        this.nodeIds = nodeIds;
+    }
+
+    private static void collectNodeIds(TocEntry entry, String id, Map<String, String> ids) {
+        String href = stripFragment(entry.getHref());
+        if (href != null && !ids.containsKey(href)) {
+            ids.put(href, id);
+        }
+        int index = 0;
+        for (TocEntry child : entry.getChildren()) {
+            collectNodeIds(child, childId(id, index++), ids);
+        }
+    }
+
+    private static String stripFragment(String href) {
+        if (href == null) {
+            return null;
+        }
+        int hashIndex = href.indexOf('#');
+        return hashIndex == -1 ? href : href.substring(0, hashIndex);
+    }
+
+    /**
+     * Returns the id of a child node. Node ids are the dot separated positions of the node and its ancestors within
+     * the table of contents of the bundle, and the bundle itself has the empty id.
+     *
+     * @param parentId the id of the parent node.
+     * @param index    the position of the child within its parent.
+     * @return the id of the child node.
+     */
+    public static String childId(String parentId, int index) {
+        return parentId.length() == 0 ? Integer.toString(index) : parentId + "." + index;
+    }
+
+    /**
+     * Finds a node by its id.
+     *
+     * @param toc the table of contents of the bundle.
+     * @param id  the id of the node.
+     * @return the node or {@code null} if there is no such node.
+     */
+    public static TocEntry findNode(Toc toc, String id) {
+        TocEntry entry = toc;
+        if (id == null || id.length() == 0) {
+            return entry;
+        }
+        for (String index : id.split("\\.")) {
+            int i;
+            try {
+                i = Integer.parseInt(index);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (i < 0 || i >= entry.getChildren().size()) {
+                return null;
+            }
+            entry = entry.getChildren().get(i);
+        }
+        return entry;
+    }
+
+    private static int sequenceOrder(List<Pattern> sequence, String key) {
+        int i = 0;
+        if (sequence != null) {
+            for (Pattern p : sequence) {
+                if (p.matcher(key).matches()) return i;
+                i++;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Returns the bundles in the order they appear in the table of contents.
+     */
+    public List<Map.Entry<String, Toc>> getSortedEntries() {
+        return sortedEntries;
+    }
+
+    /**
+     * Returns the {@code <li>} elements of the table of contents tree with the branches leading to the current
+     * topic expanded.
+     *
+     * @param contextPath the context path that the links are relative to.
+     * @param path        the path of the current topic, e.g. {@code /bundle/topic.html}, or {@code null}.
+     * @return the markup.
+     */
+    public String getHtml(String contextPath, String path) {
+        String[] collapsed = rendered.get(contextPath);
+        if (collapsed == null) {
+            collapsed = new String[sortedEntries.size()];
+            for (int i = 0; i < collapsed.length; i++) {
+                Map.Entry<String, Toc> bundleEntry = sortedEntries.get(i);
+                StringBuilder out = new StringBuilder();
+                appendNode(out, contextPath, bundleEntry.getKey(), bundleEntry.getValue(), "", null);
+                collapsed[i] = out.toString();
+            }
+            String[] existing = rendered.putIfAbsent(contextPath, collapsed);
+            if (existing != null) {
+                collapsed = existing;
+            }
+        }
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < collapsed.length; i++) {
+            Map.Entry<String, Toc> bundleEntry = sortedEntries.get(i);
+            String bundle = bundleEntry.getKey();
+            if (path != null && path.startsWith("/" + bundle + "/")) {
+                String href = path.substring(bundle.length() + 2);
+                int queryIndex = href.indexOf('?');
+                href = stripFragment(queryIndex == -1 ? href : href.substring(0, queryIndex));
+                String currentId = nodeIds.get(bundle).get(href);
+                // always open the current bundle, even if the topic is not in the tree
+                appendNode(out, contextPath, bundle, bundleEntry.getValue(), "", currentId == null ? "" : currentId);
+            } else {
+                out.append(collapsed[i]);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Appends a node. Its children are only rendered if the node is the current node or one of its ancestors,
+     * otherwise an empty placeholder list marks the node as one to be loaded on demand.
+     */
+    private static void appendNode(StringBuilder out, String contextPath, String bundle, TocEntry entry, String id,
+                                   String currentId) {
+        out.append("<li>");
+        appendLink(out, contextPath, bundle, entry);
+        if (!entry.getChildren().isEmpty()) {
+            boolean open = currentId != null
+                    && (id.length() == 0 || currentId.equals(id) || currentId.startsWith(id + "."));
+            if (open) {
+                out.append("<ul>");
+                int index = 0;
+                for (TocEntry child : entry.getChildren()) {
+                    appendNode(out, contextPath, bundle, child, childId(id, index++), currentId);
+                }
+                out.append("</ul>");
+            } else {
+                out.append("<ul class=\"ts-lazy\" data-ts-bundle=\"");
+                out.append(StringEscapeUtils.escapeHtml4(bundle));
+                out.append("\" data-ts-node=\"");
+                out.append(id);
+                out.append("\"></ul>");
+            }
+        }
+        out.append("</li>");
+    }
+
+    /**
+     * Appends the link of a node.
+     */
+    public static void appendLink(StringBuilder out, String contextPath, String bundle, TocEntry entry) {
+        if (entry.getHref() != null) {
+            out.append("<a href=\"");
+            out.append(getHref(contextPath, bundle, entry));
+            out.append("\">");
+        }
+        out.append("<span>");
+        out.append(StringEscapeUtils.escapeHtml4(entry.getLabel()));
+        out.append("</span>");
+        if (entry.getHref() != null) {
+            out.append("</a>");
+        }
+    }
+
+    /**
+     * Returns the link to the topic of a node or {@code null} if the node has no topic.
+     */
+    public static String getHref(String contextPath, String bundle, TocEntry entry) {
+        return entry.getHref() == null ? null : contextPath + "/docs/" + bundle + "/" + entry.getHref();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.lang3.StringUtils;
+import org.tobarsegais.webapp.data.Toc;
+import org.tobarsegais.webapp.data.TocEntry;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Serves the children of a single table of contents node as JSON, so that the browser only needs to fetch the
+ * branches that get expanded. The node is addressed as {@code /toc/<bundle>?node=<id>} where the id is the one
+ * used by {@link TocRenderer}, omitting the node returns the top level topics of the bundle.
+ */
+public class TocServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        HelpSnapshot snapshot = ServletContextListenerImpl.getSnapshot(req, getServletContext());
+        String bundle = StringUtils.removeEnd(StringUtils.removeStart(req.getPathInfo(), "/"), "/");
+        Toc toc = bundle == null ? null : snapshot.getTablesOfContents().get(bundle);
+        String id = StringUtils.defaultString(req.getParameter("node"));
+        TocEntry node = toc == null ? null : TocRenderer.findNode(toc, id);
+        if (node == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        StringBuilder json = new StringBuilder();
+        json.append('[');
+        int index = 0;
+        for (TocEntry child : node.getChildren()) {
+            if (index > 0) {
+                json.append(',');
+            }
+            json.append('{');
+            Json.appendProperty(json, "id", TocRenderer.childId(id, index++)).append(',');
+            Json.appendProperty(json, "label", child.getLabel()).append(',');
+            Json.appendProperty(json, "href", TocRenderer.getHref(req.getContextPath(), bundle, child)).append(',');
+            Json.appendString(json, "children").append(':').append(!child.getChildren().isEmpty());
+            json.append('}');
+        }
+        json.append(']');
+        byte[] bytes = json.toString().getBytes("UTF-8");
+        resp.setContentType(Json.CONTENT_TYPE);
+        resp.setContentLength(bytes.length);
+        // node ids are positions, so a reload can give an id different children and only the default applies
+        String cacheControl = snapshot.getCacheControl(null);
+        if (cacheControl != null) {
+            resp.setHeader("Cache-Control", cacheControl);
+        }
+        OutputStream out = resp.getOutputStream();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Holds the extracted {@code <body>} of topics so that a docs page view does not have to parse the topic. Bodies are
+ * extracted the first time a topic is viewed and keyed by bundle, entry name and the entity tag of the entry, so a
+ * reloaded bundle never serves the bodies of the jar it replaced. The cache is bounded by the total length of the
+ * bodies and evicts the least recently used bodies first. Topics too large to be cached are copied straight to the
+ * output.
+ */
+public class TopicBodyCache {
+
+    private final long maxChars;
+
+    private long chars;
+
+    private final Map<String, String> bodies = new LinkedHashMap<String, String>(16, 0.75f, true);
+
+    /**
+     * Creates the cache.
+     *
+     * @param maxChars the maximum total length of the bodies, {@code 0} disables the cache.
+     */
+    public TopicBodyCache(long maxChars) {
+        this.maxChars = Math.max(0, maxChars);
+    }
+
+    /**
+     * Writes the {@code <body>} element of a topic.
+     *
+     * @param fileKey  the name of the bundle jar without the {@code .jar} extension.
+     * @param jarFile  the bundle jar.
+     * @param jarEntry the topic.
+     * @param etag     the entity tag of the topic from {@link BundleRegistry#getETag}, or {@code null} to key by
+     *                 the entry timestamp.
+     * @param out      where to write the body to.
+     * @throws IOException if the topic could not be read or the body could not be written.
+     */
+    public void writeBody(String fileKey, JarFile jarFile, JarEntry jarEntry, String etag, Writer out)
+            throws IOException {
+        String key = fileKey + "!/" + jarEntry.getName() + "@" + (etag != null ? etag : jarEntry.getTime());
+        String body;
+        synchronized (this) {
+            body = bodies.get(key);
+        }
+        if (body == null && (jarEntry.getSize() < 0 || jarEntry.getSize() > maxChars)) {
+            // the body can have at most as many characters as the entry has bytes
+            Reader in = new InputStreamReader(jarFile.getInputStream(jarEntry), "UTF-8");
+            try {
+                BodyExtractor.copyBody(in, out);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            return;
+        }
+        if (body == null) {
+            StringBuilder extracted = new StringBuilder((int) jarEntry.getSize());
+            Reader in = new InputStreamReader(jarFile.getInputStream(jarEntry), "UTF-8");
+            try {
+                BodyExtractor.copyBody(in, extracted);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            body = extracted.toString();
+            synchronized (this) {
+                String previous = bodies.put(key, body);
+                if (previous != null) {
+                    chars -= previous.length();
+                }
+                chars += body.length();
+                Iterator<String> iterator = bodies.values().iterator();
+                while (chars > maxChars && iterator.hasNext()) {
+                    chars -= iterator.next().length();
+                    iterator.remove();
+                }
+            }
+        }
+        out.write(body);
+    }
+
+    /**
+     * Removes all the cached bodies.
+     */
+    public synchronized void clear() {
+        bodies.clear();
+        chars = 0;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2012 Stephen Connolly
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tobarsegais.webapp;
+
+import org.tobarsegais.webapp.data.Toc;
+import org.tobarsegais.webapp.data.TocEntry;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the table of contents entries of topics by href, replacing a walk of every table of contents with a map
+ * lookup. Hrefs are normalized by dropping any query, fragment or leading {@code /} so that {@code a.html},
+ * {@code /a.html} and {@code a.html#section} all find the same entry. Where several entries share an href the first
+ * one in document order wins, and where several bundles share an href the first bundle in table of contents order
+ * wins.
+ */
+public class TopicIndex {
+
+    /**
+     * The topics keyed by bundle and then by normalized href.
+     */
+    private final Map<String, Map<String, Match>> bundles = new HashMap<String, Map<String, Match>>();
+
+    /**
+     * The topics of all the bundles keyed by normalized href.
+     */
+    private final Map<String, Match> topics = new HashMap<String, Match>();
+
+    /**
+     * Creates the index.
+     *
+     * @param contents the tables of contents keyed by bundle, in the order they appear in the table of contents.
+     */
+    public TopicIndex(List<Map.Entry<String, Toc>> contents) {
+        for (Map.Entry<String, Toc> entry : contents) {
+            Map<String, Match> hrefs = new HashMap<String, Match>();
+            collect(entry.getKey(), entry.getValue(), hrefs);
+            bundles.put(entry.getKey(), hrefs);
+            for (Map.Entry<String, Match> href : hrefs.entrySet()) {
+                if (!topics.containsKey(href.getKey())) {
+                    topics.put(href.getKey(), href.getValue());
+                }
+            }
+        }
+    }
+
+    private static void collect(String bundle, TocEntry entry, Map<String, Match> hrefs) {
+        String href = normalize(entry.getHref());
+        if (href != null && !hrefs.containsKey(href)) {
+            hrefs.put(href, new Match(bundle, entry));
+        }
+        for (TocEntry child : entry.getChildren()) {
+            collect(bundle, child, hrefs);
+        }
+    }
+
+    /**
+     * Normalizes an href for lookup.
+     *
+     * @param href the href.
+     * @return the href without any query, fragment or leading {@code /}.
+     */
+    public static String normalize(String href) {
+        if (href == null) {
+            return null;
+        }
+        int end = href.length();
+        int hashIndex = href.indexOf('#');
+        if (hashIndex != -1) {
+            end = hashIndex;
+        }
+        int queryIndex = href.indexOf('?');
+        if (queryIndex != -1 && queryIndex < end) {
+            end = queryIndex;
+        }
+        int start = 0;
+        while (start < end && href.charAt(start) == '/') {
+            start++;
+        }
+        return href.substring(start, end);
+    }
+
+    /**
+     * Finds a topic in any bundle.
+     *
+     * @param href the href of the topic relative to its bundle.
+     * @return the topic or {@code null} if no bundle has such a topic.
+     */
+    public Match find(String href) {
+        return href == null ? null : topics.get(normalize(href));
+    }
+
+    /**
+     * Finds a topic in a specific bundle.
+     *
+     * @param bundle the bundle.
+     * @param href   the href of the topic relative to the bundle.
+     * @return the topic or {@code null} if the bundle has no such topic.
+     */
+    public Match find(String bundle, String href) {
+        Map<String, Match> hrefs = bundles.get(bundle);
+        return hrefs == null || href == null ? null : hrefs.get(normalize(href));
+    }
+
+    /**
+     * Finds a topic from its request path, i.e. {@code /bundle/href}.
+     *
+     * @param path the request path.
+     * @return the topic or {@code null} if the path does not resolve to a topic.
+     */
+    public Match findPath(String path) {
+        if (path == null) {
+            return null;
+        }
+        int start = path.startsWith("/") ? 1 : 0;
+        int index = path.indexOf('/', start);
+        return index == -1 ? null : find(path.substring(start, index), path.substring(index + 1));
+    }
+
+    /**
+     * A topic and the bundle it belongs to.
+     */
+    public static class Match {
+        private final String bundle;
+        private final TocEntry entry;
+
+        public Match(String bundle, TocEntry entry) {
+            this.bundle = bundle;
+            this.entry = entry;
+        }
+
+        public String getBundle() {
+            return bundle;
+        }
+
+        public TocEntry getEntry() {
+            return entry;
+        }
+
+        /**
+         * Returns the request path of the topic, i.e. {@code /bundle/href}.
+         */
+        public String getPath() {
+            return "/" + bundle + "/" + entry.getHref();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Match");
+            sb.append("{bundle='").append(bundle).append('\'');
+            sb.append(", href='").append(entry.getHref()).append('\'');
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
@@ -1,5 +1,4 @@
 <%@ page import="org.tobarsegais.webapp.ServletContextListenerImpl" %>
-<%@ page import="org.apache.commons.lang3.StringUtils" %>
 <%--
  ~ Copyright 2012 Stephen Connolly
  ~
@@ -18,14 +17,8 @@
 <%@ page contentType="text/html;charset=UTF-8" language="java" trimDirectiveWhitespaces="true" %>
 <%@ taglib prefix="tags" tagdir="/WEB-INF/tags" %>
 <%
-    String cacheControl = ServletContextListenerImpl.getInitParameter(application, "cache-control.mime.text/html");
-    if (cacheControl == null) {
-        cacheControl = ServletContextListenerImpl.getInitParameter(application, "cache-control.mime.text/*");
-    }
-    if (cacheControl == null) {
-        cacheControl = ServletContextListenerImpl.getInitParameter(application, "cache-control.default");
-    }
-    if (StringUtils.isNotBlank(cacheControl)) {
+    String cacheControl = ServletContextListenerImpl.getSnapshot(request, application).getCacheControl("text/html");
+    if (cacheControl != null) {
         response.setHeader("Cache-Control", cacheControl);
     }
 %><!DOCTYPE html>
@@ -39,6 +39,178 @@ var TobairSegais = {
             $(this).click(TobairSegais.clickSupport);
         });
     },
+    tocSettings:{
+        animated:"fast",
+        collapsed:true,
+        persist:"location",
+        toggle:function () {
+            TobairSegais.loadSubtree($(this));
+        }
+    },
+    loadSubtree:function (li) {
+        // branches that were not rendered by the server have an empty placeholder list
+        var ul = li.children("ul.ts-lazy");
+        if (ul.length == 0) {
+            return;
+        }
+        ul.removeClass("ts-lazy");
+        var tree = $("#toc");
+        var bundle = ul.attr("data-ts-bundle");
+        $.getJSON(tree.attr("data-ts-url") + encodeURIComponent(bundle), {node:ul.attr("data-ts-node")}, function (nodes) {
+            $.each(nodes, function (i, node) {
+                var item = $("<li/>");
+                var label = $("<span/>").text(node.label);
+                if (node.href) {
+                    item.append($("<a/>").attr("href", node.href).append(label));
+                } else {
+                    item.append(label);
+                }
+                if (node.children) {
+                    item.append($("<ul/>").addClass("ts-lazy").attr("data-ts-bundle", bundle).attr("data-ts-node", node.id));
+                }
+                ul.append(item);
+            });
+            ul.find("li").prepareBranches(TobairSegais.tocSettings)
+                .applyClasses(TobairSegais.tocSettings, tree.data("toggler"));
+            ul.find("a").click(TobairSegais.clickSupport);
+        }).fail(function () {
+            // try again the next time the branch is expanded
+            ul.addClass("ts-lazy");
+        });
+    },
+    showKeywords:function (bucket, hash) {
+        var index = $("#keywords");
+        var done = function () {
+            if (hash) {
+                window.location.hash = hash;
+            }
+        };
+        if (index.attr("data-ts-bucket") == bucket) {
+            done();
+            return;
+        }
+        $.get(index.attr("data-ts-url") + bucket, function (html) {
+            index.html(html).attr("data-ts-bucket", bucket);
+            TobairSegais.addClickSupport("#keywords");
+            index.find("a[data-ts-bucket]").click(TobairSegais.keywordsSupport);
+            done();
+        }, "html");
+    },
+    keywordsSupport:function () {
+        // see links point at an anchor that may be in a bucket that has not been loaded yet
+        var href = $(this).attr("href");
+        TobairSegais.showKeywords($(this).attr("data-ts-bucket"), href.charAt(0) == '#' ? href : null);
+        return false;
+    },
+    loadKeywords:function () {
+        if (!$("#keywords").attr("data-ts-bucket")) {
+            var first = $(".ts-keyword-buckets a[data-ts-bucket]").first();
+            if (first.length > 0) {
+                TobairSegais.showKeywords(first.attr("data-ts-bucket"), null);
+            }
+        }
+    },
+    search:function (params) {
+        var results = $("#search-results");
+        $.getJSON($(".form-search").attr("data-ts-url"), params, function (page) {
+            TobairSegais.showSearchResults(params.query, page);
+        }).fail(function (xhr) {
+            var message = "Search failed";
+            try {
+                message = $.parseJSON(xhr.responseText).error || message;
+            } catch (e) {
+                // not a JSON error
+            }
+            results.empty().append($("<span/>").text(message));
+        });
+        return false;
+    },
+    showSearchResults:function (query, page) {
+        var results = $("#search-results").empty();
+        if (page.total != null) {
+            results.append($("<span/>").text("Found " + page.total + " hits:"));
+        }
+        var list = $("<ol/>").attr("start", page.start + 1);
+        $.each(page.hits, function (i, hit) {
+            var item = $("<li/>").append($("<a/>").attr("href", hit.href).text(hit.title)
+                .click(TobairSegais.clickSupport));
+            if (hit.snippet) {
+                // the snippet is escaped by the server apart from the highlighting
+                item.append($("<p/>").addClass("ts-snippet").html(hit.snippet));
+            }
+            list.append(item);
+        });
+        results.append(list);
+        if (page.start > 0 || page.more) {
+            var pager = $("<ul/>").addClass("pager");
+            if (page.start > 0) {
+                pager.append($("<li/>").addClass("previous").append($("<a/>").attr("href", "#").html("&larr; Previous")
+                    .click(function () {
+                        return TobairSegais.search({query:query, start:Math.max(0, page.start - page.size), size:page.size});
+                    })));
+            }
+            if (page.more) {
+                pager.append($("<li/>").addClass("next").append($("<a/>").attr("href", "#").html("Next &rarr;")
+                    .click(function () {
+                        return TobairSegais.search({query:query, start:page.start + page.hits.length, size:page.size,
+                            after:page.after});
+                    })));
+            }
+            results.append(pager);
+        }
+    },
+    searchSupport:function () {
+        var query = $(this).find("input[name='query']").val();
+        if (!query || !$(this).attr("data-ts-url")) {
+            return true;
+        }
+        return TobairSegais.search({query:query});
+    },
+    suggestSupport:function () {
+        var form = $(this);
+        var input = form.find("input[name='query']");
+        var suggestions = {};
+        input.typeahead({
+            items:10,
+            minLength:2,
+            source:function (query, process) {
+                $.getJSON(form.attr("data-ts-suggest-url"), {query:query}, function (found) {
+                    if (input.val() != query) {
+                        // the user has typed more since
+                        return;
+                    }
+                    suggestions = {};
+                    var labels = [];
+                    $.each(found, function (i, suggestion) {
+                        if (!suggestions.hasOwnProperty(suggestion.label)) {
+                            suggestions[suggestion.label] = suggestion;
+                            labels.push(suggestion.label);
+                        }
+                    });
+                    process(labels);
+                });
+            },
+            matcher:function () {
+                // the server has already matched on the start of any word
+                return true;
+            },
+            sorter:function (labels) {
+                return labels;
+            },
+            updater:function (label) {
+                var suggestion = suggestions[label];
+                if (suggestion && suggestion.href) {
+                    TobairSegais.loadContent(suggestion.href);
+                } else {
+                    // keywords are searched for once the input has the label
+                    setTimeout(function () {
+                        form.submit();
+                    }, 0);
+                }
+                return label;
+            }
+        });
+    },
     scroll:function (url) {
         // scroll content
         var i = url.indexOf('#');
@@ -78,7 +250,11 @@ var TobairSegais = {
                 history.pushState({url:url}, "", url);
                 var i = url.indexOf('#');
                 TobairSegais.scroll(url);
-                document.title = $("#contents-nav a[href='"+(i == -1 ? url : url.substring(0,i))+"']").text();
+                var title = $("#contents-nav a[href='"+(i == -1 ? url : url.substring(0,i))+"']").text();
+                if (title) {
+                    // the topic may be in a branch of the contents that has not been loaded
+                    document.title = title;
+                }
             });
             return false;
         }
@@ -122,9 +298,12 @@ $(function () {
 });
 
 $(document).ready(function(){
-    $("#toc").treeview({
-		animated: "fast",
-		collapsed: true,
-                persist: "location"
-    });    
+    $("#toc").treeview(TobairSegais.tocSettings);
+    $(".ts-keyword-buckets a[data-ts-bucket]").click(TobairSegais.keywordsSupport);
+    $(".form-search").submit(TobairSegais.searchSupport);
+    $(".form-search[data-ts-suggest-url]").each(TobairSegais.suggestSupport);
+    $('a[href="#index-nav"]').on("shown", TobairSegais.loadKeywords);
+    if ($("#index-nav").hasClass("active")) {
+        TobairSegais.loadKeywords();
+    }
 })